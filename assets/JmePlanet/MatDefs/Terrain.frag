@@ -9,12 +9,11 @@ uniform sampler2D m_Region2ColorMap;
 uniform sampler2D m_Region3ColorMap;
 uniform sampler2D m_Region4ColorMap;
 uniform sampler2D m_SlopeColorMap;
-uniform vec3 m_PatchCenter;
 uniform float m_PlanetRadius;
 
 varying vec3 wvNormal;
-varying vec3 vNormal;
-varying vec4 positionObjectSpace;
+varying vec3 planetPosition;
+varying vec3 planetNormal;
 varying vec2 texCoord;
 varying vec3 AmbientSum;
 varying vec4 DiffuseSum;
@@ -57,7 +56,7 @@ vec4 generateTerrainColor(float height) {
     vec4 color;
     color = vec4(0.0,0.0,0.0,1.0);
 
-    float slope = 1.0 - clamp(dot(normalize(vNormal), normalize(m_PatchCenter + positionObjectSpace.xyz)), 0.0, 1.0);
+    float slope = 1.0 - clamp(dot(normalize(planetNormal), normalize(planetPosition)), 0.0, 1.0);
 
     float regionMin = 0.0;
     float regionMax = 0.0;
@@ -107,7 +106,7 @@ vec2 computeLighting(in vec3 wvNorm, in vec3 wvViewDir, in vec3 wvLightDir){
 
 void main() {
     // Compute height of position from surface of planet
-    float height = length(m_PatchCenter + positionObjectSpace.xyz) - m_PlanetRadius;
+    float height = length(planetPosition) - m_PlanetRadius;
 
     vec4 color = generateTerrainColor(height);
 
@@ -1,4 +1,5 @@
 uniform mat4 g_WorldViewProjectionMatrix;
+uniform mat4 g_WorldMatrix;
 uniform mat4 g_WorldViewMatrix;
 uniform mat3 g_NormalMatrix;
 uniform mat4 g_ViewMatrix;
@@ -15,11 +16,19 @@ varying vec3 SpecularSum;
 
 attribute vec4 inPosition;
 attribute vec2 inTexCoord;
+#ifdef PACKED_VERTICES
+// quantized position, scaled back by the local scale of the geometry
+// normal: octahedral encoded normal in xy, edge flags in zw
+attribute vec4 inNormal;
+#else
 attribute vec3 inNormal;
+#endif
+
+uniform vec3 m_PlanetCenter;
 
 varying vec3 lightVec;
-varying vec4 positionObjectSpace;
-varying vec3 vNormal;
+varying vec3 planetPosition;
+varying vec3 planetNormal;
 varying vec3 wvNormal;
 varying vec3 vViewDir;
 varying vec4 vLightDir;
@@ -32,17 +41,35 @@ void lightComputeDir(in vec3 worldPos, in vec4 color, in vec4 position, out vec4
     lightDir = vec4(normalize(tempVec), 1.0);
 }
 
+#ifdef PACKED_VERTICES
+vec3 decodeOctahedral(in vec2 e){
+    vec3 n = vec3(e.xy, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0) {
+        n.xy = (1.0 - abs(n.yx)) * (step(0.0, n.xy) * 2.0 - 1.0);
+    }
+    return normalize(n);
+}
+#endif
+
 void main(){
    
-    positionObjectSpace = inPosition;
+    #ifdef PACKED_VERTICES
+    vec3 normal = decodeOctahedral(inNormal.xy);
+    #else
+    vec3 normal = inNormal;
+    #endif
     gl_Position = g_WorldViewProjectionMatrix * inPosition;
+
+    // The material is shared by all patches, their position on the planet
+    // comes from the geometry transform
+    planetPosition = (g_WorldMatrix * inPosition).xyz - m_PlanetCenter;
+    planetNormal = (g_WorldMatrix * vec4(normal, 0.0)).xyz;
     
     texCoord = inTexCoord;
 
     vec3 wvPosition = (g_WorldViewMatrix * inPosition).xyz;
 
-    vNormal = inNormal;
-    wvNormal  = normalize(g_NormalMatrix * inNormal);
+    wvNormal  = normalize(g_NormalMatrix * normal);
     vec3 viewDir = normalize(-wvPosition);
 
     vec4 wvLightPos = (g_ViewMatrix * vec4(g_LightPosition.xyz,clamp(g_LightColor.w,0.0,1.0)));
@@ -0,0 +1,374 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * BakedHeightDataSource serves heights from a cube map height file written 
+ * by <code>HeightMapBaker</code>. The file is memory mapped, so only the 
+ * pages that are actually sampled, or bounded, are ever read from disk.
+ * 
+ * File layout (little endian):
+ *   int magic, int version, int resolution, int levels, float heightScale
+ *   for each face, for each level: long offset, float min, float max,
+ *   long tile offset
+ *   for each face, for each level: (n * n) unsigned shorts, row by row,
+ *   where n = (resolution >> level) + 1, followed by (t * t) pairs of 
+ *   unsigned shorts, the min and max of each bounds tile, row by row,
+ *   where a tile is max(16 >> level, 1) texels wide
+ * 
+ * Faces are in the order of <code>Planet.terrainSide</code>: right, left,
+ * top, bottom, front, back. Samples lie on the corners of the face grid, so
+ * faces sharing an edge store the same edge heights. Each (face, level) 
+ * block is quantized between its own min and max. Files are limited to
+ * 2 GB, the size of a single mapping.
+ */
+public class BakedHeightDataSource implements HeightDataSource {
+    
+    public static final int MAGIC = 0x484d504a; // "JPMH"
+    public static final int VERSION = 2;
+    protected static final int HEADER_SIZE = 20;
+    protected static final int DIRECTORY_ENTRY_SIZE = 24;
+    
+    protected MappedByteBuffer buffer;
+    protected int resolution;
+    protected int levels;
+    protected float bakedHeightScale;
+    protected float heightScale;
+    protected long[][] offset;
+    protected float[][] min;
+    protected float[][] step;
+    
+    /// Level 0 texels per side of a bounds tile, coarser levels keep the 
+    /// same tiles down to a texel each
+    protected static final int BOUNDS_TILE_SIZE = 16;
+    
+    // bounds tiles per side of each level, and where the quantized min/max
+    // of the tiles of each face and level are stored
+    protected int[] boundsTiles;
+    protected long[][] tileOffset;
+    
+    public BakedHeightDataSource(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // a single mapping, and so the whole file, is limited to 2 GB
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Baked height file larger than 2 GB: " + file);
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        
+        if (this.buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a baked height file: " + file);
+        if (this.buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported baked height file version " + this.buffer.getInt(4) + ": " + file);
+        
+        this.resolution = this.buffer.getInt(8);
+        this.levels = this.buffer.getInt(12);
+        this.bakedHeightScale = this.buffer.getFloat(16);
+        this.heightScale = this.bakedHeightScale;
+        
+        this.offset = new long[6][this.levels];
+        this.min = new float[6][this.levels];
+        this.step = new float[6][this.levels];
+        this.tileOffset = new long[6][this.levels];
+        this.boundsTiles = new int[this.levels];
+        for (int level = 0; level < this.levels; level++)
+            this.boundsTiles[level] = getBoundsTiles(this.resolution, level);
+        int entry = HEADER_SIZE;
+        for (int face = 0; face < 6; face++) {
+            for (int level = 0; level < this.levels; level++) {
+                this.offset[face][level] = this.buffer.getLong(entry);
+                this.min[face][level] = this.buffer.getFloat(entry + 8);
+                float max = this.buffer.getFloat(entry + 12);
+                this.step[face][level] = (max - this.min[face][level]) / 65535f;
+                this.tileOffset[face][level] = this.buffer.getLong(entry + 16);
+                entry += DIRECTORY_ENTRY_SIZE;
+                
+                long n = (this.resolution >> level) + 1;
+                long tiles = this.boundsTiles[level];
+                if (this.offset[face][level] < 0 || this.offset[face][level] + 2 * n * n > this.buffer.capacity() ||
+                        this.tileOffset[face][level] < 0 || this.tileOffset[face][level] + 4 * tiles * tiles > this.buffer.capacity())
+                    throw new IOException("Truncated baked height file: " + file);
+            }
+        }
+    }
+    
+    /**
+     * Heights are rescaled relative to the height scale they were baked with.
+     */
+    public void setHeightScale(float heightScale) {
+        this.heightScale = heightScale;
+    }
+    
+    public float getHeightScale() {
+        return this.heightScale;
+    }
+    
+    public int getResolution() {
+        return this.resolution;
+    }
+    
+    public int getLevels() {
+        return this.levels;
+    }
+    
+    public float getValue(Vector3f position) {
+        return sample(position.x, position.y, position.z, 0);
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count) {
+        getValues(x, y, z, values, count, 0f);
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing) {
+        int level = getLevel(spacing);
+        for (int i = 0; i < count; i++)
+            values[i] = sample(x[i], y[i], z[i], level);
+    }
+    
+    /**
+     * Bounds from per face min/max tiles of every pyramid level over the 
+     * rectangle, so they hold whatever level the spacing picks.
+     */
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds) {
+        float low = Float.MAX_VALUE;
+        float high = -Float.MAX_VALUE;
+        
+        if (faceMin == null || faceMax == null) {
+            for (int face = 0; face < 6; face++) {
+                for (int level = 0; level < this.levels; level++) {
+                    low = Math.min(low, this.min[face][level]);
+                    high = Math.max(high, this.min[face][level] + 65535f * this.step[face][level]);
+                }
+            }
+        } else {
+            // the constant axis of the rectangle picks the face
+            int face;
+            float u0, u1, v0, v1;
+            if (faceMin.x == faceMax.x && Math.abs(faceMin.x) == 1f) {
+                face = faceMin.x > 0 ? 0 : 1;
+                u0 = faceMin.z; u1 = faceMax.z;
+                v0 = faceMin.y; v1 = faceMax.y;
+            } else if (faceMin.y == faceMax.y && Math.abs(faceMin.y) == 1f) {
+                face = faceMin.y > 0 ? 2 : 3;
+                u0 = faceMin.x; u1 = faceMax.x;
+                v0 = faceMin.z; v1 = faceMax.z;
+            } else {
+                face = faceMin.z > 0 ? 4 : 5;
+                u0 = faceMin.x; u1 = faceMax.x;
+                v0 = faceMin.y; v1 = faceMax.y;
+            }
+            
+            // coarser levels are filtered over a wider footprint, so each 
+            // level is bounded by its own tiles. Only the tiles under the 
+            // rectangle are read, a whole face takes the bounds of the level.
+            for (int level = 0; level < this.levels; level++) {
+                int tiles = this.boundsTiles[level];
+                int tx0 = getBoundsTile(Math.min(u0, u1), false, level);
+                int tx1 = getBoundsTile(Math.max(u0, u1), true, level);
+                int ty0 = getBoundsTile(Math.min(v0, v1), false, level);
+                int ty1 = getBoundsTile(Math.max(v0, v1), true, level);
+                int qMin = 65535;
+                int qMax = 0;
+                if (tx0 == 0 && ty0 == 0 && tx1 == tiles - 1 && ty1 == tiles - 1) {
+                    qMin = 0;
+                    qMax = 65535;
+                } else {
+                    int base = (int)this.tileOffset[face][level];
+                    for (int ty = ty0; ty <= ty1; ty++) {
+                        for (int tx = tx0; tx <= tx1; tx++) {
+                            int tile = base + 4 * (ty * tiles + tx);
+                            qMin = Math.min(qMin, this.buffer.getShort(tile) & 0xffff);
+                            qMax = Math.max(qMax, this.buffer.getShort(tile + 2) & 0xffff);
+                        }
+                    }
+                }
+                low = Math.min(low, this.min[face][level] + qMin * this.step[face][level]);
+                high = Math.max(high, this.min[face][level] + qMax * this.step[face][level]);
+            }
+        }
+        
+        if (this.heightScale != this.bakedHeightScale) {
+            float rescale = this.heightScale / this.bakedHeightScale;
+            low *= rescale;
+            high *= rescale;
+        }
+        bounds[0] = Math.min(low, high);
+        bounds[1] = Math.max(low, high);
+    }
+    
+    /// Tile of a level holding face coordinate c, widened by a texel for the bilinear footprint
+    private int getBoundsTile(float c, boolean upper, int level) {
+        int size = this.resolution >> level;
+        float texel = (c + 1f) * 0.5f * size;
+        int sample = upper ? (int)Math.ceil(texel) + 1 : (int)Math.floor(texel) - 1;
+        sample = Math.min(Math.max(sample, 0), size);
+        return Math.min(sample / getBoundsTileSize(level), this.boundsTiles[level] - 1);
+    }
+    
+    /// Texels per side of a bounds tile of a level
+    protected static int getBoundsTileSize(int level) {
+        return Math.max(BOUNDS_TILE_SIZE >> level, 1);
+    }
+    
+    /// Bounds tiles per side of a level
+    protected static int getBoundsTiles(int resolution, int level) {
+        return Math.max((resolution >> level) / getBoundsTileSize(level), 1);
+    }
+    
+    /**
+     * Quantized min and max of each bounds tile of a (face, level) block, in
+     * the layout of the file.
+     */
+    protected static ByteBuffer getBoundsTiles(ByteBuffer block, int resolution, int level) {
+        int n = (resolution >> level) + 1;
+        int size = getBoundsTileSize(level);
+        int tiles = getBoundsTiles(resolution, level);
+        int[] tileMin = new int[tiles * tiles];
+        int[] tileMax = new int[tiles * tiles];
+        Arrays.fill(tileMin, 65535);
+        for (int y = 0; y < n; y++) {
+            int ty = Math.min(y / size, tiles - 1);
+            for (int x = 0; x < n; x++) {
+                int tx = Math.min(x / size, tiles - 1);
+                int q = block.getShort(2 * (y * n + x)) & 0xffff;
+                int tile = ty * tiles + tx;
+                if (q < tileMin[tile])
+                    tileMin[tile] = q;
+                if (q > tileMax[tile])
+                    tileMax[tile] = q;
+            }
+        }
+        
+        ByteBuffer result = ByteBuffer.allocate(4 * tiles * tiles);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        for (int tile = 0; tile < tiles * tiles; tile++) {
+            result.putShort((short)tileMin[tile]);
+            result.putShort((short)tileMax[tile]);
+        }
+        result.flip();
+        return result;
+    }
+    
+    /**
+     * Spacing below which <code>getLevel</code> picks level 0.
+     */
+    public float getFullDetailSpacing() {
+        if (this.levels == 1)
+            return Float.POSITIVE_INFINITY;
+        return 0.99f * 4f / this.resolution;
+    }
+    
+    /**
+     * Coarsest pyramid level whose texels are no wider than 
+     * <code>spacing</code> on the unit sphere.
+     */
+    public int getLevel(float spacing) {
+        if (spacing <= 0f)
+            return 0;
+        // level l texels are 2^(l+1) / resolution wide on the cube face
+        float texels = spacing * this.resolution * 0.5f;
+        int level = 0;
+        while (level + 1 < this.levels && texels >= 2f) {
+            texels *= 0.5f;
+            level++;
+        }
+        return level;
+    }
+    
+    protected float sample(float x, float y, float z, int level) {
+        // pick the cube face from the major axis and project onto it
+        float ax = Math.abs(x);
+        float ay = Math.abs(y);
+        float az = Math.abs(z);
+        int face;
+        float u;
+        float v;
+        if (ax >= ay && ax >= az) {
+            face = x > 0 ? 0 : 1;
+            u = z / ax;
+            v = y / ax;
+        } else if (ay >= az) {
+            face = y > 0 ? 2 : 3;
+            u = x / ay;
+            v = z / ay;
+        } else {
+            face = z > 0 ? 4 : 5;
+            u = x / az;
+            v = y / az;
+        }
+        
+        int n = (this.resolution >> level) + 1;
+        float fx = (u + 1f) * 0.5f * (n - 1);
+        float fy = (v + 1f) * 0.5f * (n - 1);
+        int ix = Math.min(Math.max((int)fx, 0), n - 2);
+        int iy = Math.min(Math.max((int)fy, 0), n - 2);
+        float tx = Math.min(Math.max(fx - ix, 0f), 1f);
+        float ty = Math.min(Math.max(fy - iy, 0f), 1f);
+        
+        // bilinear filter on the quantized values, dequantize once
+        int base = (int)this.offset[face][level] + 2 * (iy * n + ix);
+        float q00 = this.buffer.getShort(base) & 0xffff;
+        float q10 = this.buffer.getShort(base + 2) & 0xffff;
+        float q01 = this.buffer.getShort(base + 2 * n) & 0xffff;
+        float q11 = this.buffer.getShort(base + 2 * n + 2) & 0xffff;
+        float q0 = q00 + (q10 - q00) * tx;
+        float q1 = q01 + (q11 - q01) * tx;
+        float q = q0 + (q1 - q0) * ty;
+        
+        float height = this.min[face][level] + q * this.step[face][level];
+        if (this.heightScale != this.bakedHeightScale)
+            height *= this.heightScale / this.bakedHeightScale;
+        return height;
+    }
+    
+    /**
+     * Unit sphere position of a face grid sample, matching the face 
+     * selection in <code>sample</code>.
+     */
+    protected static void faceToUnitSphere(int face, float u, float v, Vector3f store) {
+        switch (face) {
+            case 0: store.set(1f, v, u); break;
+            case 1: store.set(-1f, v, u); break;
+            case 2: store.set(u, 1f, v); break;
+            case 3: store.set(u, -1f, v); break;
+            case 4: store.set(u, v, 1f); break;
+            default: store.set(u, v, -1f); break;
+        }
+        store.normalizeLocal();
+    }
+    
+}
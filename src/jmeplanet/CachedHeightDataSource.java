@@ -0,0 +1,390 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CachedHeightDataSource memoizes the heights of another 
+ * <code>HeightDataSource</code>, so the same planet can be shared by the
+ * patches and the collision shape without sampling the noise twice.
+ * 
+ * Positions are quantized to 21 bits per axis of the unit sphere and
+ * stored in a bounded table of primitive arrays. When the table is full
+ * the least recently used height is evicted. The table is split into
+ * independently locked segments so several threads can read at once.
+ * 
+ * The cache is cleared by itself when the settings of a wrapped
+ * <code>FractalDataSource</code> change. Any other wrapped source must be
+ * configured through this class, or <code>clear()</code> must be called
+ * after changing it, otherwise stale heights keep being served.
+ */
+public class CachedHeightDataSource implements HeightDataSource {
+    
+    protected static final int QUANTIZE_BITS = 21;
+    protected static final float QUANTIZE_SCALE = ((1 << QUANTIZE_BITS) - 1) * 0.5f;
+    protected static final int SEGMENT_COUNT = 16;
+    
+    protected HeightDataSource dataSource;
+    protected Segment[] segments;
+    protected AtomicLong hits = new AtomicLong();
+    protected AtomicLong misses = new AtomicLong();
+    protected AtomicLong evictions = new AtomicLong();
+    protected volatile int sourceVersion;
+    
+    /**
+    * <code>CachedHeightDataSource</code>
+    * @param dataSource The <code>HeightDataSource</code> to cache
+    * @param capacity Maximum number of heights kept
+    */
+    public CachedHeightDataSource(HeightDataSource dataSource, int capacity) {
+        this.dataSource = dataSource;
+        this.segments = new Segment[SEGMENT_COUNT];
+        int segmentCapacity = Math.max(1, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            this.segments[i] = new Segment(segmentCapacity);
+        this.sourceVersion = getSourceVersion();
+    }
+    
+    public HeightDataSource getDataSource() {
+        return this.dataSource;
+    }
+    
+    public void setHeightScale(float heightScale) {
+        this.dataSource.setHeightScale(heightScale);
+        clear();
+    }
+    
+    public float getHeightScale() {
+        return this.dataSource.getHeightScale();
+    }
+    
+    public float getValue(Vector3f position) {
+        int version = checkSourceVersion();
+        long key = quantize(position.x, position.y, position.z);
+        Segment segment = segmentFor(key, 0);
+        
+        float value = segment.get(key, 0, Float.NaN);
+        if (value == value) {
+            this.hits.incrementAndGet();
+            return value;
+        }
+        
+        this.misses.incrementAndGet();
+        value = this.dataSource.getValue(position);
+        if (getSourceVersion() == version && segment.put(key, 0, value))
+            this.evictions.incrementAndGet();
+        return value;
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count) {
+        getValues(x, y, z, values, count, 0f);
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing) {
+        // heights sampled with a coarser footprint may have less detail, so
+        // the detail level is part of the key, and the source is sampled at
+        // the spacing of the level so every height under a key is the same
+        int version = checkSourceVersion();
+        int detail = getDetail(spacing);
+        spacing = getDetailSpacing(detail, spacing);
+        
+        long[] keys = new long[count];
+        int[] missIndex = new int[count];
+        int missCount = 0;
+        for (int i = 0; i < count; i++) {
+            keys[i] = quantize(x[i], y[i], z[i]);
+            if (!segmentFor(keys[i], detail).get(keys[i], detail, values, i))
+                missIndex[missCount++] = i;
+        }
+        
+        this.hits.addAndGet(count - missCount);
+        if (missCount == 0)
+            return;
+        this.misses.addAndGet(missCount);
+        
+        // sample the misses in one batch, keeping the original order
+        float[] missX = new float[missCount];
+        float[] missY = new float[missCount];
+        float[] missZ = new float[missCount];
+        float[] missValues = new float[missCount];
+        for (int m = 0; m < missCount; m++) {
+            missX[m] = x[missIndex[m]];
+            missY[m] = y[missIndex[m]];
+            missZ[m] = z[missIndex[m]];
+        }
+        this.dataSource.getValues(missX, missY, missZ, missValues, missCount, spacing);
+        
+        // heights sampled while the settings changed are returned, not kept
+        boolean keep = getSourceVersion() == version;
+        int evicted = 0;
+        for (int m = 0; m < missCount; m++) {
+            int i = missIndex[m];
+            values[i] = missValues[m];
+            if (keep && segmentFor(keys[i], detail).put(keys[i], detail, values[i]))
+                evicted++;
+        }
+        if (evicted > 0)
+            this.evictions.addAndGet(evicted);
+    }
+    
+    public float getFullDetailSpacing() {
+        return this.dataSource.getFullDetailSpacing();
+    }
+    
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds) {
+        this.dataSource.getHeightBounds(faceMin, faceMax, bounds);
+    }
+    
+    public long getHitCount() {
+        return this.hits.get();
+    }
+    
+    public long getMissCount() {
+        return this.misses.get();
+    }
+    
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+    
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : this.segments)
+            size += segment.size();
+        return size;
+    }
+    
+    public void clear() {
+        for (Segment segment : this.segments)
+            segment.clear();
+    }
+    
+    /// Settings version of the wrapped source, 0 for sources without one
+    protected int getSourceVersion() {
+        if (this.dataSource instanceof FractalDataSource)
+            return ((FractalDataSource) this.dataSource).getSettingsVersion();
+        return 0;
+    }
+    
+    /// Clears the cache if the wrapped source changed since the last lookup
+    protected int checkSourceVersion() {
+        int version = getSourceVersion();
+        if (version != this.sourceVersion) {
+            clear();
+            this.sourceVersion = version;
+        }
+        return version;
+    }
+    
+    /**
+     * Detail level of heights sampled <code>spacing</code> apart: the number
+     * of times the spacing doubles past the full detail spacing. With the
+     * default lacunarity of 2 that is the number of octaves the source
+     * leaves out. Full detail spacings, including 0, are all level 0, so 
+     * the terrain and the collision shape share their heights.
+     */
+    protected int getDetail(float spacing) {
+        float fullDetailSpacing = this.dataSource.getFullDetailSpacing();
+        int detail = 0;
+        if (fullDetailSpacing > 0f) {
+            while (detail < 30 && fullDetailSpacing * (2 << detail) <= spacing)
+                detail++;
+        }
+        return detail;
+    }
+    
+    /// Spacing the source is sampled at for a detail level, the finest of the level
+    protected float getDetailSpacing(int detail, float spacing) {
+        if (detail == 0)
+            return Math.min(spacing, this.dataSource.getFullDetailSpacing());
+        return this.dataSource.getFullDetailSpacing() * (1 << detail);
+    }
+    
+    protected Segment segmentFor(long key, int detail) {
+        return this.segments[(hash(key, detail) >>> 28) & (SEGMENT_COUNT - 1)];
+    }
+    
+    protected static long quantize(float x, float y, float z) {
+        long qx = (long)((x + 1f) * QUANTIZE_SCALE + 0.5f);
+        long qy = (long)((y + 1f) * QUANTIZE_SCALE + 0.5f);
+        long qz = (long)((z + 1f) * QUANTIZE_SCALE + 0.5f);
+        return (qx << (2 * QUANTIZE_BITS)) | (qy << QUANTIZE_BITS) | qz;
+    }
+    
+    protected static int hash(long key, int detail) {
+        long h = key ^ ((long)detail << 32) ^ detail;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (int)h;
+    }
+    
+    /**
+     * Fixed capacity hash table with an intrusive LRU list, all on 
+     * primitive arrays. Entry slots are never reallocated.
+     */
+    protected static class Segment {
+        
+        protected long[] keys;
+        protected int[] details;
+        protected float[] values;
+        protected int[] chain;
+        protected int[] buckets;
+        protected int[] lruPrev;
+        protected int[] lruNext;
+        protected int lruHead = -1;
+        protected int lruTail = -1;
+        protected int size;
+        
+        protected Segment(int capacity) {
+            this.keys = new long[capacity];
+            this.details = new int[capacity];
+            this.values = new float[capacity];
+            this.chain = new int[capacity];
+            this.lruPrev = new int[capacity];
+            this.lruNext = new int[capacity];
+            int bucketCount = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.buckets = new int[bucketCount];
+            clear();
+        }
+        
+        /// Returns <code>missing</code> if the height isn't cached
+        protected synchronized float get(long key, int detail, float missing) {
+            int slot = find(key, detail);
+            if (slot < 0)
+                return missing;
+            touch(slot);
+            return this.values[slot];
+        }
+        
+        protected synchronized boolean get(long key, int detail, float[] out, int outIndex) {
+            int slot = find(key, detail);
+            if (slot < 0)
+                return false;
+            out[outIndex] = this.values[slot];
+            touch(slot);
+            return true;
+        }
+        
+        /// Returns true if an older entry had to be evicted
+        protected synchronized boolean put(long key, int detail, float value) {
+            int slot = find(key, detail);
+            if (slot >= 0) {
+                this.values[slot] = value;
+                touch(slot);
+                return false;
+            }
+            
+            boolean evicted = false;
+            if (this.size < this.keys.length) {
+                slot = this.size++;
+            } else {
+                slot = this.lruTail;
+                unlinkBucket(slot);
+                unlinkLru(slot);
+                evicted = true;
+            }
+            
+            this.keys[slot] = key;
+            this.details[slot] = detail;
+            this.values[slot] = value;
+            int bucket = hash(key, detail) & (this.buckets.length - 1);
+            this.chain[slot] = this.buckets[bucket];
+            this.buckets[bucket] = slot;
+            linkLruHead(slot);
+            return evicted;
+        }
+        
+        protected synchronized int size() {
+            return this.size;
+        }
+        
+        protected synchronized void clear() {
+            Arrays.fill(this.buckets, -1);
+            this.lruHead = -1;
+            this.lruTail = -1;
+            this.size = 0;
+        }
+        
+        private int find(long key, int detail) {
+            int slot = this.buckets[hash(key, detail) & (this.buckets.length - 1)];
+            while (slot >= 0) {
+                if (this.keys[slot] == key && this.details[slot] == detail)
+                    return slot;
+                slot = this.chain[slot];
+            }
+            return -1;
+        }
+        
+        private void touch(int slot) {
+            if (slot != this.lruHead) {
+                unlinkLru(slot);
+                linkLruHead(slot);
+            }
+        }
+        
+        private void linkLruHead(int slot) {
+            this.lruPrev[slot] = -1;
+            this.lruNext[slot] = this.lruHead;
+            if (this.lruHead >= 0)
+                this.lruPrev[this.lruHead] = slot;
+            this.lruHead = slot;
+            if (this.lruTail < 0)
+                this.lruTail = slot;
+        }
+        
+        private void unlinkLru(int slot) {
+            int prev = this.lruPrev[slot];
+            int next = this.lruNext[slot];
+            if (prev >= 0)
+                this.lruNext[prev] = next;
+            else
+                this.lruHead = next;
+            if (next >= 0)
+                this.lruPrev[next] = prev;
+            else
+                this.lruTail = prev;
+        }
+        
+        private void unlinkBucket(int slot) {
+            int bucket = hash(this.keys[slot], this.details[slot]) & (this.buckets.length - 1);
+            int current = this.buckets[bucket];
+            int previous = -1;
+            while (current >= 0 && current != slot) {
+                previous = current;
+                current = this.chain[current];
+            }
+            if (current < 0)
+                return;
+            if (previous < 0)
+                this.buckets[bucket] = this.chain[slot];
+            else
+                this.chain[previous] = this.chain[slot];
+        }
+    }
+    
+}
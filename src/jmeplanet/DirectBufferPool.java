@@ -0,0 +1,163 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DirectBufferPool recycles the direct buffers of patch meshes, instead of
+ * leaving the off-heap memory of every hidden patch to the garbage collector.
+ * 
+ * Buffers are kept in size classes of their exact size in bytes. All patches
+ * of a planet have the same number of quads, so they ask for the same few 
+ * sizes over and over and a borrowed buffer always has the capacity asked 
+ * for, as jME expects of vertex buffer data.
+ * 
+ * A patch borrows its buffers in <code>prepare</code> and hands them back 
+ * with <code>Patch.release</code>, once its geometry is detached. Free 
+ * buffers beyond <code>maxPooledBytes</code> aren't kept but destroyed.
+ */
+public class DirectBufferPool {
+    
+    /// 64 MB
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+    
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final long maxPooledBytes;
+    private long pooledBytes;
+    private long borrowedBytes;
+    private long allocations;
+    private long reuses;
+    private long releases;
+    private long discards;
+    
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+    
+    public DirectBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+    
+    /**
+     * Borrows a cleared direct buffer of <code>bytes</code> capacity in native
+     * byte order, recycled if one of that size is free.
+     */
+    public synchronized ByteBuffer borrow(int bytes) {
+        ByteBuffer buffer = null;
+        ArrayDeque<ByteBuffer> sizeClass = this.free.get(bytes);
+        if (sizeClass != null)
+            buffer = sizeClass.poll();
+        
+        if (buffer != null) {
+            this.pooledBytes -= bytes;
+            this.reuses++;
+            buffer.clear();
+        } else {
+            buffer = BufferUtils.createByteBuffer(bytes);
+            this.allocations++;
+        }
+        this.borrowedBytes += bytes;
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * Returns a buffer from <code>borrow</code>. Nothing may use it, or a
+     * view of it, afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        int bytes = buffer.capacity();
+        this.borrowedBytes -= bytes;
+        this.releases++;
+        
+        if (this.pooledBytes + bytes > this.maxPooledBytes) {
+            BufferUtils.destroyDirectBuffer(buffer);
+            this.discards++;
+            return;
+        }
+        
+        ArrayDeque<ByteBuffer> sizeClass = this.free.get(bytes);
+        if (sizeClass == null) {
+            sizeClass = new ArrayDeque<ByteBuffer>();
+            this.free.put(bytes, sizeClass);
+        }
+        sizeClass.push(buffer);
+        this.pooledBytes += bytes;
+    }
+    
+    /**
+     * Destroys all free buffers. Borrowed buffers can still be released.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> sizeClass : this.free.values()) {
+            for (ByteBuffer buffer : sizeClass)
+                BufferUtils.destroyDirectBuffer(buffer);
+        }
+        this.free.clear();
+        this.pooledBytes = 0;
+    }
+    
+    /// Bytes of free buffers kept for reuse
+    public synchronized long getPooledBytes() {
+        return this.pooledBytes;
+    }
+    
+    /// Bytes of buffers borrowed and not released yet
+    public synchronized long getBorrowedBytes() {
+        return this.borrowedBytes;
+    }
+    
+    /// Buffers newly allocated by borrow
+    public synchronized long getAllocationCount() {
+        return this.allocations;
+    }
+    
+    /// Buffers recycled by borrow
+    public synchronized long getReuseCount() {
+        return this.reuses;
+    }
+    
+    public synchronized long getReleaseCount() {
+        return this.releases;
+    }
+    
+    /// Released buffers destroyed because the pool was full
+    public synchronized long getDiscardCount() {
+        return this.discards;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "DirectBufferPool[borrowed=" + this.borrowedBytes 
+                + " pooled=" + this.pooledBytes 
+                + " allocations=" + this.allocations
+                + " reuses=" + this.reuses
+                + " releases=" + this.releases
+                + " discards=" + this.discards + "]";
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * DistanceLodStrategy splits quads closer to the camera than the length of
+ * their bounding box, whatever the view and the terrain look like. The
+ * error is that length over the distance.
+ */
+public class DistanceLodStrategy implements LodStrategy {
+    
+    protected float splitThreshold;
+    protected float mergeThreshold;
+    
+    /**
+     * Splits and merges at the same distance.
+     */
+    public DistanceLodStrategy() {
+        this(1f, 1f);
+    }
+    
+    public DistanceLodStrategy(float splitThreshold, float mergeThreshold) {
+        this.splitThreshold = splitThreshold;
+        this.mergeThreshold = mergeThreshold;
+    }
+    
+    public void setCamera(Camera camera) {
+    }
+    
+    public float getError(Quad quad, Vector3f position) {
+        BoundingBox aabb = quad.getAABB();
+        float aabbLength = getLength(aabb);
+        float distance = aabb.distanceToEdge(position);
+        if (distance <= 0f)
+            return Float.MAX_VALUE;
+        return aabbLength / distance;
+    }
+    
+    /**
+     * The error crosses the threshold at the box length over the threshold
+     * from the box.
+     */
+    public float getStableDistance(Quad quad, Vector3f position, float threshold) {
+        BoundingBox aabb = quad.getAABB();
+        return Math.abs(aabb.distanceToEdge(position) - getLength(aabb) / threshold);
+    }
+    
+    private static float getLength(BoundingBox aabb) {
+        return FastMath.sqrt(aabb.getXExtent() * aabb.getXExtent() 
+                + aabb.getYExtent() * aabb.getYExtent() 
+                + aabb.getZExtent() * aabb.getZExtent());
+    }
+    
+    public float getSplitThreshold() {
+        return this.splitThreshold;
+    }
+    
+    public float getMergeThreshold() {
+        return this.mergeThreshold;
+    }
+    
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * EdgeSampleExchange lets a patch reuse the border samples a neighbouring
+ * patch of the same depth already evaluated.
+ * 
+ * An edge is identified by its two end points on the cube, snapped to an
+ * integer lattice, so both patches sharing it find the same entry, also when
+ * they lie on different faces of the cube, and by the sample spacing the 
+ * heights were evaluated at. The first patch built puts the strip of 
+ * samples around the edge, the other one takes it and uses the unit sphere 
+ * positions and heights as they are, which makes the shared rows exact by 
+ * construction. Along the edge the samples are stored from the lower end 
+ * point to the upper one, across it from the negative to the positive side 
+ * of the cube axis it crosses.
+ * 
+ * Patch corners are shared by up to four patches, which could each bring
+ * the corner from a different edge. They are kept as single samples, the 
+ * first patch to sample a corner at a spacing decides it for all patches 
+ * sampling at that spacing.
+ * 
+ * Strips and corners stay after they are taken, so a patch rebuilt after 
+ * its neighbour, once evicted from the patch cache or merged and split 
+ * again, still matches it. They are dropped least recently used first.
+ */
+public class EdgeSampleExchange {
+    
+    /// About 10 MB of strips with padding and without gradients at 32 quads
+    public static final int DEFAULT_CAPACITY = 4096;
+    /// Lattice steps per unit of cube coordinates, 2^19 covers depth 19
+    protected static final float LATTICE_SCALE = 1 << 19;
+    
+    /**
+     * Samples of a strip of <code>2 * padding + 1</code> rows of
+     * <code>quads + 1</code> samples along an edge, row by row.
+     */
+    public static class Samples {
+        /// 0 for a corner
+        protected int quads;
+        protected int padding;
+        protected float heightScale;
+        protected float[] x;
+        protected float[] y;
+        protected float[] z;
+        protected float[] height;
+        /// null unless the writer sampled the gradients
+        protected float[] gradientX;
+        protected float[] gradientY;
+        protected float[] gradientZ;
+        
+        public Samples(int quads, int padding, float heightScale, boolean gradients) {
+            int count = (2 * padding + 1) * (quads + 1);
+            this.quads = quads;
+            this.padding = padding;
+            this.heightScale = heightScale;
+            this.x = new float[count];
+            this.y = new float[count];
+            this.z = new float[count];
+            this.height = new float[count];
+            if (gradients) {
+                this.gradientX = new float[count];
+                this.gradientY = new float[count];
+                this.gradientZ = new float[count];
+            }
+        }
+        
+        /// Index of the sample at row (-padding to padding) and position along the edge
+        public int getIndex(int row, int along) {
+            return (row + this.padding) * (this.quads + 1) + along;
+        }
+    }
+    
+    private static final class Key {
+        private final int ax, ay, az, bx, by, bz;
+        /// bits of the sample spacing
+        private final int detail;
+        
+        private Key(int ax, int ay, int az, int bx, int by, int bz, int detail) {
+            this.ax = ax;
+            this.ay = ay;
+            this.az = az;
+            this.bx = bx;
+            this.by = by;
+            this.bz = bz;
+            this.detail = detail;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return ax == k.ax && ay == k.ay && az == k.az && bx == k.bx && by == k.by && bz == k.bz &&
+                    detail == k.detail;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = ax;
+            h = h * 31 + ay;
+            h = h * 31 + az;
+            h = h * 31 + bx;
+            h = h * 31 + by;
+            h = h * 31 + bz;
+            h = h * 31 + detail;
+            return h;
+        }
+    }
+    
+    private final Map<Key, Samples> edges;
+    private long hits;
+    private long misses;
+    
+    public EdgeSampleExchange() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    public EdgeSampleExchange(final int capacity) {
+        this.edges = new LinkedHashMap<Key, Samples>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Samples> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    /**
+     * Returns the samples of the edge from <code>a</code> to <code>b</code>
+     * (cube coordinates) evaluated at <code>spacing</code>, or null if no 
+     * patch put them. The samples must not be changed.
+     */
+    public synchronized Samples get(Vector3f a, Vector3f b, float spacing) {
+        Samples samples = this.edges.get(getKey(a, b, spacing));
+        if (samples != null)
+            this.hits++;
+        else
+            this.misses++;
+        return samples;
+    }
+    
+    public synchronized void put(Vector3f a, Vector3f b, float spacing, Samples samples) {
+        this.edges.put(getKey(a, b, spacing), samples);
+    }
+    
+    /**
+     * Returns the single sample at corner <code>p</code> (cube coordinates)
+     * evaluated at <code>spacing</code>, or null if no patch put it yet.
+     */
+    public synchronized Samples getCorner(Vector3f p, float spacing) {
+        Samples samples = this.edges.get(getKey(p, p, spacing));
+        if (samples != null)
+            this.hits++;
+        else
+            this.misses++;
+        return samples;
+    }
+    
+    public synchronized void putCorner(Vector3f p, float spacing, Samples samples) {
+        this.edges.put(getKey(p, p, spacing), samples);
+    }
+    
+    /**
+     * True if <code>a</code> is the lower end point of the edge, i.e. the
+     * samples are stored going from <code>a</code> to <code>b</code>.
+     */
+    public static boolean isLowerEnd(Vector3f a, Vector3f b) {
+        int ax = lattice(a.x), ay = lattice(a.y), az = lattice(a.z);
+        int bx = lattice(b.x), by = lattice(b.y), bz = lattice(b.z);
+        if (ax != bx)
+            return ax < bx;
+        if (ay != by)
+            return ay < by;
+        return az <= bz;
+    }
+    
+    public synchronized void clear() {
+        this.edges.clear();
+    }
+    
+    public synchronized int getSize() {
+        return this.edges.size();
+    }
+    
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+    
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+    
+    private static Key getKey(Vector3f a, Vector3f b, float spacing) {
+        int detail = Float.floatToIntBits(spacing);
+        if (isLowerEnd(a, b))
+            return new Key(lattice(a.x), lattice(a.y), lattice(a.z), lattice(b.x), lattice(b.y), lattice(b.z), detail);
+        return new Key(lattice(b.x), lattice(b.y), lattice(b.z), lattice(a.x), lattice(a.y), lattice(a.z), detail);
+    }
+    
+    private static int lattice(float c) {
+        return Math.round(c * LATTICE_SCALE);
+    }
+    
+}
@@ -33,20 +33,46 @@ import com.jme3.math.Vector3f;
  * Copyright (c) 2008, Urs C. Hanselmann
  * http://sourceforge.net/projects/noisepp/
  */
-public class FractalDataSource implements HeightDataSource {
-    
-    protected static final int NOISE_QUALITY_LOW=0;
-    protected static final int NOISE_QUALITY_STD=1;
-    protected static final int NOISE_QUALITY_HIGH=2;
-    protected static final int NOISE_QUALITY_FAST_LOW=3;
-    protected static final int NOISE_QUALITY_FAST_STD=4; 
-    protected static final int NOISE_QUALITY_FAST_HIGH=5;
+public class FractalDataSource implements GradientHeightDataSource {
+    
+    /// Gradient noise, lattice cells blended linearly. Roughly 20% cheaper
+    /// than STD but the cell boundaries show up as creases in the terrain
+    /// and in the normals. Good enough for physics and far away patches.
+    public static final int NOISE_QUALITY_LOW=0;
+    /// Gradient noise blended with a cubic s-curve. Smooth heights with
+    /// slightly visible discontinuities in the slope. The default.
+    public static final int NOISE_QUALITY_STD=1;
+    /// Gradient noise blended with a quintic s-curve. Continuous slope and
+    /// curvature for close-up rendering, at a few more multiplies per sample.
+    public static final int NOISE_QUALITY_HIGH=2;
+    /// Value noise blended linearly. No gradient lookups and no dot 
+    /// products, about twice as fast as STD but blocky. Meant for coarse 
+    /// collision queries.
+    public static final int NOISE_QUALITY_FAST_LOW=3;
+    /// Value noise blended with a cubic s-curve. Much cheaper than gradient
+    /// noise, but features line up with the lattice and look less natural.
+    public static final int NOISE_QUALITY_FAST_STD=4; 
+    /// Value noise blended with a quintic s-curve.
+    public static final int NOISE_QUALITY_FAST_HIGH=5;
     protected static final int NOISE_X_FACTOR = 1619;
     protected static final int NOISE_Y_FACTOR = 31337;
     protected static final int NOISE_Z_FACTOR = 6971;
     protected static final int NOISE_SEED_FACTOR = 1013;
     protected static final int NOISE_SHIFT = 8;
     protected static final float FAST_NOISE_SCALE_FACTOR= 0.5f;
+    protected static final float NOISE_SCALE = 2.12f;
+    /// Octaves with a wavelength shorter than this many sample spacings
+    /// can't be represented by the sampling grid and are left out
+    protected static final float OCTAVE_CUTOFF_SAMPLES = 2.0f;
+    /// Octave count never truncated below this
+    protected static final int MIN_OCTAVE_COUNT = 3;
+    /// Approximate mean of a ridged octave, subtracted so ridged octaves
+    /// stay centred around zero like the plain ones
+    protected static final float RIDGED_MEAN = 1f / 3f;
+    /// Largest magnitude of unit gradient noise in 3D, sqrt(3)/2
+    protected static final float GRADIENT_NOISE_MAX = 0.8660254f;
+    /// Largest magnitude of the value noise
+    protected static final float VALUE_NOISE_MAX = 1f;
     
     private class Octave
     {
@@ -62,32 +88,54 @@ public class FractalDataSource implements HeightDataSource {
     /// The noise seed.
     private int seed = 0;
     /// The noise quality.
-    private int quality = NOISE_QUALITY_STD;
+    private volatile int quality = NOISE_QUALITY_STD;
     /// The noise lacunarity.
     private float lacunarity = 2.0f;
     /// The noise persistence.
     private float persistence = 0.625f;
-    /// The noise scale factor.
-    private float scale = 2.12f;
     
     private Octave[] octaves;
     
-    private float heightScale = 1f;
+    // Settings are volatile, patches are sampled on worker threads
+    private volatile float heightScale = 1f;
     private float shift = 1f;
-    private boolean minEnabled = false;
-    private float min = 0f;
+    private volatile boolean ridged = false;
+    private volatile boolean minEnabled = false;
+    private volatile float min = 0f;
     private float max = 1.5f;
+    // bumped by every setter that changes the heights
+    private volatile int settingsVersion = 0;
 
     public FractalDataSource() {
         this(0);
     }
     
     public FractalDataSource(int seed) {
+        this(seed, NOISE_QUALITY_STD);
+    }
+    
+    public FractalDataSource(int seed, int quality) {
+        this(seed, quality, 12, 1.0f, 2.0f, 0.625f);
+    }
+    
+    /**
+    * <code>FractalDataSource</code>
+    * @param seed The noise seed
+    * @param quality One of the <code>NOISE_QUALITY_*</code> tiers
+    * @param octaveCount The number of octaves
+    * @param frequency Frequency of the first octave on the unit sphere
+    * @param lacunarity Frequency multiplier between octaves
+    * @param persistence Amplitude multiplier between octaves
+    */
+    public FractalDataSource(int seed, int quality, int octaveCount, float frequency, float lacunarity, float persistence) {
         
         this.seed = seed;
+        this.octaveCount = octaveCount;
+        this.frequency = frequency;
+        this.lacunarity = lacunarity;
+        this.persistence = persistence;
         
-        if (this.quality > NOISE_QUALITY_HIGH)
-            this.scale *= FAST_NOISE_SCALE_FACTOR;
+        setQuality(quality);
         
         this.octaves = new Octave[this.octaveCount];
         float curPersistence = 1.0f;
@@ -110,16 +158,62 @@ public class FractalDataSource implements HeightDataSource {
     public void setMin(float min) {
         this.min = min;
         this.minEnabled = true;
+        this.settingsVersion++;
     }
     
     public void setHeightScale(float heightScale) {
         this.heightScale = heightScale;
+        this.settingsVersion++;
     }
     
     public int getSeed() {
         return this.seed;
     }
     
+    /**
+     * Selects one of the <code>NOISE_QUALITY_*</code> tiers. Patches that
+     * are already built keep the heights they were built with.
+     */
+    public void setQuality(int quality) {
+        if (quality < NOISE_QUALITY_LOW || quality > NOISE_QUALITY_FAST_HIGH)
+            throw new IllegalArgumentException("Unknown noise quality: " + quality);
+        
+        this.quality = quality;
+        this.settingsVersion++;
+    }
+    
+    private static float getNoiseScale(int quality) {
+        // value noise spans about twice the range of gradient noise
+        if (quality > NOISE_QUALITY_HIGH)
+            return NOISE_SCALE * FAST_NOISE_SCALE_FACTOR;
+        return NOISE_SCALE;
+    }
+    
+    public int getQuality() {
+        return this.quality;
+    }
+    
+    /**
+     * Ridged mode folds every octave into sharp crests, (1 - |n|)^2,
+     * which gives mountain ranges instead of rolling hills.
+     */
+    public void setRidged(boolean ridged) {
+        this.ridged = ridged;
+        this.settingsVersion++;
+    }
+    
+    /**
+     * Counter that changes whenever a setting that affects the heights
+     * changes, so caches of this source can tell their heights are stale.
+     */
+    public int getSettingsVersion() {
+        return this.settingsVersion;
+    }
+    
+    public boolean isRidged() {
+        return this.ridged;
+    }
+    
     public float getHeightScale() {
         return this.heightScale;
     }
@@ -127,13 +221,17 @@ public class FractalDataSource implements HeightDataSource {
     public float getValue(Vector3f position) {
         float value = 0.0f;
         float signal = 1.0f;
+        int quality = this.quality;
+        float scale = getNoiseScale(quality);
 
         for (int o=0;o<this.octaveCount;++o)
         {
                 float nx = (position.x * this.octaves[o].scale);
                 float ny = (position.y * this.octaves[o].scale);
                 float nz = (position.z * this.octaves[o].scale);
-                signal = calculateGradient(nx, ny, nz, this.octaves[o].seed);
+                signal = calculateGradient(nx, ny, nz, this.octaves[o].seed, quality, scale);
+                if (this.ridged)
+                    signal = ridge(signal);
 
                 value += signal * this.octaves[o].persistence;
         }
@@ -149,23 +247,235 @@ public class FractalDataSource implements HeightDataSource {
         return value;
     }
 
-    private float calculateGradient (float x, float y, float z, int seed)
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count) {
+        getValues(x, y, z, values, count, 0f);
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing) {
+        evaluate(x, y, z, values, null, null, null, count, spacing);
+    }
+    
+    public void getValuesAndGradients(float[] x, float[] y, float[] z, float[] values, float[] gradientX, float[] gradientY, float[] gradientZ, int count, float spacing) {
+        evaluate(x, y, z, values, gradientX, gradientY, gradientZ, count, spacing);
+    }
+    
+    /// Shared batch evaluation, the gradient is skipped if gradientX is null
+    private void evaluate(float[] x, float[] y, float[] z, float[] values, float[] gradientX, float[] gradientY, float[] gradientZ, int count, float spacing) {
+        boolean gradients = gradientX != null;
+        // Read the settings once, so a batch is consistent while they change
+        int quality = this.quality;
+        float scale = getNoiseScale(quality);
+        boolean ridged = this.ridged;
+        float heightScale = this.heightScale;
+        boolean minEnabled = this.minEnabled;
+        float min = this.min;
+        
+        for (int i = 0; i < count; i++) {
+            values[i] = 0.0f;
+            if (gradients) {
+                gradientX[i] = 0.0f;
+                gradientY[i] = 0.0f;
+                gradientZ[i] = 0.0f;
+            }
+        }
+        
+        // Octaves past the sampling footprint are dropped. Every octave has 
+        // an expected value of 0, so the missing tail is replaced by nothing,
+        // and the last octave kept is faded in by the fractional part of the 
+        // count. Heights only change smoothly with a smoothly changing 
+        // spacing: patches sample at one spacing per depth, half the last, 
+        // so a split still adds about one octave at once. That pop is 
+        // smaller than the whole tail would be, but it is not removed.
+        float octaves = getOctaveCount(spacing);
+        int fullOctaves = (int)octaves;
+        float fraction = octaves - fullOctaves;
+        int evaluatedOctaves = (fraction > 0f) ? fullOctaves + 1 : fullOctaves;
+
+        // Walk the samples once per octave. Neighbouring samples of a grid row
+        // usually fall into the same lattice cell on the lower octaves, so the
+        // corner gradients are only looked up again when the cell changes.
+        boolean fast = quality > NOISE_QUALITY_HIGH;
+        float[] cellGradients = new float[24];
+        float[] derivative = new float[3];
+        for (int o=0;o<evaluatedOctaves;++o)
+        {
+                float oScale = this.octaves[o].scale;
+                float oPersistence = this.octaves[o].persistence;
+                if (o == fullOctaves)
+                    oPersistence *= fraction;
+                int oSeed = this.octaves[o].seed;
+
+                boolean cellValid = false;
+                int cellX = 0;
+                int cellY = 0;
+                int cellZ = 0;
+                for (int i = 0; i < count; i++)
+                {
+                        float nx = (x[i] * oScale);
+                        float ny = (y[i] * oScale);
+                        float nz = (z[i] * oScale);
+
+                        //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+                        int x0 = (nx > 0.0f ? (int)nx : (int)nx - 1);
+                        int y0 = (ny > 0.0f ? (int)ny : (int)ny - 1);
+                        int z0 = (nz > 0.0f ? (int)nz : (int)nz - 1);
+
+                        if (!cellValid || x0 != cellX || y0 != cellY || z0 != cellZ) {
+                            if (fast)
+                                fillCellValues(x0, y0, z0, oSeed, cellGradients);
+                            else
+                                fillCellGradients(x0, y0, z0, oSeed, cellGradients);
+                            cellX = x0;
+                            cellY = y0;
+                            cellZ = z0;
+                            cellValid = true;
+                        }
+
+                        float signal;
+                        if (gradients) {
+                            if (fast)
+                                signal = interpValueCoherentNoise(nx, ny, nz, x0, y0, z0, cellGradients, scale, quality, derivative);
+                            else
+                                signal = interpGradientCoherentNoise(nx, ny, nz, x0, y0, z0, cellGradients, scale, quality, derivative);
+                            if (ridged) {
+                                // d/dn (1 - |n|)^2 = -2 (1 - |n|) sign(n)
+                                float ridgeSlope = -2f * (1f - Math.abs(signal)) * Math.signum(signal);
+                                derivative[0] *= ridgeSlope;
+                                derivative[1] *= ridgeSlope;
+                                derivative[2] *= ridgeSlope;
+                            }
+                            // chain rule for the octave frequency
+                            gradientX[i] += derivative[0] * oPersistence * oScale;
+                            gradientY[i] += derivative[1] * oPersistence * oScale;
+                            gradientZ[i] += derivative[2] * oPersistence * oScale;
+                        } else if (fast) {
+                            signal = interpValueCoherentNoise(nx, ny, nz, x0, y0, z0, cellGradients, scale, quality);
+                        } else {
+                            signal = interpGradientCoherentNoise(nx, ny, nz, x0, y0, z0, cellGradients, scale, quality);
+                        }
+                        if (ridged)
+                            signal = ridge(signal);
+                        values[i] += signal * oPersistence;
+                }
+        }
+
+        for (int i = 0; i < count; i++) {
+            values[i] *= heightScale;
+            if (gradients) {
+                gradientX[i] *= heightScale;
+                gradientY[i] *= heightScale;
+                gradientZ[i] *= heightScale;
+            }
+            if (minEnabled && values[i] < min) {
+                // clamped flat
+                values[i] = min;
+                if (gradients) {
+                    gradientX[i] = 0.0f;
+                    gradientY[i] = 0.0f;
+                    gradientZ[i] = 0.0f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounds from the amplitude sum of the octaves. Noise is unbounded in
+     * position, so the bound is the same for every region.
+     */
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds) {
+        int quality = this.quality;
+        float noiseMax = (quality > NOISE_QUALITY_HIGH ? VALUE_NOISE_MAX : GRADIENT_NOISE_MAX) * getNoiseScale(quality);
+        
+        float signalMin = -noiseMax;
+        float signalMax = noiseMax;
+        if (this.ridged) {
+            float crest = Math.max(1f, (noiseMax - 1f) * (noiseMax - 1f));
+            signalMin = -RIDGED_MEAN;
+            signalMax = crest - RIDGED_MEAN;
+        }
+        
+        float amplitude = 0f;
+        for (int o=0;o<this.octaveCount;++o)
+            amplitude += this.octaves[o].persistence;
+        
+        float low = signalMin * amplitude * this.heightScale;
+        float high = signalMax * amplitude * this.heightScale;
+        bounds[0] = Math.min(low, high);
+        bounds[1] = Math.max(low, high);
+        
+        if (this.minEnabled) {
+            bounds[0] = Math.max(bounds[0], this.min);
+            bounds[1] = Math.max(bounds[1], this.min);
+        }
+    }
+
+    /**
+     * Spacing below which <code>getOctaveCount</code> keeps every octave,
+     * with a little margin for the rounding of the logarithm.
+     */
+    public float getFullDetailSpacing() {
+        double highestScale = Math.pow(this.lacunarity, this.octaveCount - 1);
+        return (float)(0.99 / (OCTAVE_CUTOFF_SAMPLES * this.frequency * highestScale));
+    }
+
+    /**
+     * Number of octaves worth evaluating for samples <code>spacing</code>
+     * apart on the unit sphere. The result is fractional, the last octave
+     * is weighted by the fraction. A spacing of 0 returns all octaves.
+     */
+    public float getOctaveCount(float spacing) {
+        if (spacing <= 0f)
+            return this.octaveCount;
+        
+        // octave o has a wavelength of 1 / (frequency * lacunarity^o)
+        float highestScale = 1f / (OCTAVE_CUTOFF_SAMPLES * spacing * this.frequency);
+        if (highestScale <= 1f)
+            return MIN_OCTAVE_COUNT;
+        float octaves = (float)(Math.log(highestScale) / Math.log(this.lacunarity)) + 1f;
+        
+        return FastMath.clamp(octaves, MIN_OCTAVE_COUNT, this.octaveCount);
+    }
+
+    /// Ridged octave signal, re-centred by its approximate mean
+    private float ridge (float signal)
+    {
+            float crest = 1f - Math.abs(signal);
+            return crest * crest - RIDGED_MEAN;
+    }
+
+    private float calculateGradient (float x, float y, float z, int seed, int quality, float scale)
+    {
+            switch (quality) {
+                case NOISE_QUALITY_LOW:
+                    return calcGradientCoherentNoiseLow (x, y, z, seed, scale);
+                case NOISE_QUALITY_HIGH:
+                    return calcGradientCoherentNoiseHigh (x, y, z, seed, scale);
+                case NOISE_QUALITY_FAST_LOW:
+                    return calcGradientCoherentFastNoiseLow (x, y, z, seed, scale);
+                case NOISE_QUALITY_FAST_STD:
+                    return calcGradientCoherentFastNoiseStd (x, y, z, seed, scale);
+                case NOISE_QUALITY_FAST_HIGH:
+                    return calcGradientCoherentFastNoiseHigh (x, y, z, seed, scale);
+                default:
+                    return calcGradientCoherentNoiseStd (x, y, z, seed, scale);
+            }
+    }
+    
+    private float calcGradientCoherentNoiseLow (float x, float y, float z, int seed, float scale)
     {
-            //if (this.quality == NOISE_QUALITY_STD)
-                    return calcGradientCoherentNoiseStd (x, y, z, seed, this.scale);
-            /*
-            else if (this.quality == NOISE_QUALITY_HIGH)
-                    return Generator3D::calcGradientCoherentNoiseHigh (x, y, z, seed, mScale);
-            else if (this.quality == NOISE_QUALITY_LOW)
-                    return Generator3D::calcGradientCoherentNoiseLow (x, y, z, seed, mScale);
-            else if (this.quality == NOISE_QUALITY_FAST_STD)
-                    return Generator3D::calcGradientCoherentFastNoiseStd (x, y, z, seed, mScale);
-            else if (this.quality == NOISE_QUALITY_FAST_HIGH)
-                    return Generator3D::calcGradientCoherentFastNoiseHigh (x, y, z, seed, mScale);
-            else
-                    return Generator3D::calcGradientCoherentFastNoiseLow (x, y, z, seed, mScale);
-             * 
-             */
+            //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+            int x0 = (x > 0.0f ? (int)x : (int)x - 1); 
+            int x1 = x0 + 1;
+            int y0 = (y > 0.0f ? (int)y : (int)y - 1);
+            int y1 = y0 + 1;
+            int z0 = (z > 0.0f ? (int)z : (int)z - 1); 
+            int z1 = z0 + 1;
+            
+            float xs = x - x0;
+            float ys = y - y0;
+            float zs = z - z0;
+
+            return interpGradientCoherentNoise(x, y, z, x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
     }
     
     private float calcGradientCoherentNoiseStd (float x, float y, float z, int seed, float scale)
@@ -185,6 +495,74 @@ public class FractalDataSource implements HeightDataSource {
             return interpGradientCoherentNoise(x, y, z, x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
     }
     
+    private float calcGradientCoherentNoiseHigh (float x, float y, float z, int seed, float scale)
+    {
+            //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+            int x0 = (x > 0.0f ? (int)x : (int)x - 1); 
+            int x1 = x0 + 1;
+            int y0 = (y > 0.0f ? (int)y : (int)y - 1);
+            int y1 = y0 + 1;
+            int z0 = (z > 0.0f ? (int)z : (int)z - 1); 
+            int z1 = z0 + 1;
+            
+            float xs = quinticCurve5 (x - x0);
+            float ys = quinticCurve5 (y - y0);
+            float zs = quinticCurve5 (z - z0);
+
+            return interpGradientCoherentNoise(x, y, z, x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
+    }
+    
+    private float calcGradientCoherentFastNoiseLow (float x, float y, float z, int seed, float scale)
+    {
+            //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+            int x0 = (x > 0.0f ? (int)x : (int)x - 1); 
+            int x1 = x0 + 1;
+            int y0 = (y > 0.0f ? (int)y : (int)y - 1);
+            int y1 = y0 + 1;
+            int z0 = (z > 0.0f ? (int)z : (int)z - 1); 
+            int z1 = z0 + 1;
+            
+            float xs = x - x0;
+            float ys = y - y0;
+            float zs = z - z0;
+
+            return interpValueCoherentNoise(x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
+    }
+    
+    private float calcGradientCoherentFastNoiseStd (float x, float y, float z, int seed, float scale)
+    {
+            //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+            int x0 = (x > 0.0f ? (int)x : (int)x - 1); 
+            int x1 = x0 + 1;
+            int y0 = (y > 0.0f ? (int)y : (int)y - 1);
+            int y1 = y0 + 1;
+            int z0 = (z > 0.0f ? (int)z : (int)z - 1); 
+            int z1 = z0 + 1;
+            
+            float xs = cubicCurve3 (x - x0);
+            float ys = cubicCurve3 (y - y0);
+            float zs = cubicCurve3 (z - z0);
+
+            return interpValueCoherentNoise(x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
+    }
+    
+    private float calcGradientCoherentFastNoiseHigh (float x, float y, float z, int seed, float scale)
+    {
+            //NOISE_GENERATOR_INTEGER_CLAMP_3D;
+            int x0 = (x > 0.0f ? (int)x : (int)x - 1); 
+            int x1 = x0 + 1;
+            int y0 = (y > 0.0f ? (int)y : (int)y - 1);
+            int y1 = y0 + 1;
+            int z0 = (z > 0.0f ? (int)z : (int)z - 1); 
+            int z1 = z0 + 1;
+            
+            float xs = quinticCurve5 (x - x0);
+            float ys = quinticCurve5 (y - y0);
+            float zs = quinticCurve5 (z - z0);
+
+            return interpValueCoherentNoise(x0, x1, y0, y1, z0, z1, xs, ys, zs, seed, scale);
+    }
+    
     private float interpGradientCoherentNoise (float x, float y, float z, int x0, int x1, int y0, int y1, int z0, int z1, float xs, float ys, float zs, int seed, float scale)
     {
             float n0, n1, ix0, ix1, iy0, iy1;
@@ -221,6 +599,242 @@ public class FractalDataSource implements HeightDataSource {
             float zDelta = fz - iz;
             return (xGradient * xDelta + yGradient * yDelta + zGradient * zDelta);
     }
+
+    private float interpValueCoherentNoise (int x0, int x1, int y0, int y1, int z0, int z1, float xs, float ys, float zs, int seed, float scale)
+    {
+            float n0, n1, ix0, ix1, iy0, iy1;
+            n0 = calcValueNoise(x0, y0, z0, seed);
+            n1 = calcValueNoise(x1, y0, z0, seed);
+            ix0 = interpLinear (n0, n1, xs);
+            n0 = calcValueNoise(x0, y1, z0, seed);
+            n1 = calcValueNoise(x1, y1, z0, seed);
+            ix1 = interpLinear (n0, n1, xs);
+            iy0 = interpLinear (ix0, ix1, ys);
+            n0 = calcValueNoise(x0, y0, z1, seed);
+            n1 = calcValueNoise(x1, y0, z1, seed);
+            ix0 = interpLinear (n0, n1, xs);
+            n0 = calcValueNoise(x0, y1, z1, seed);
+            n1 = calcValueNoise(x1, y1, z1, seed);
+            ix1 = interpLinear (n0, n1, xs);
+            iy1 = interpLinear (ix0, ix1, ys);
+
+            return interpLinear (iy0, iy1, zs) * scale;
+    }
+    
+    /// Random value in [-1, 1] for a lattice point
+    private float calcValueNoise (int ix, int iy, int iz, int seed)
+    {
+            int vIndex = (NOISE_X_FACTOR * ix + NOISE_Y_FACTOR * iy + NOISE_Z_FACTOR * iz + NOISE_SEED_FACTOR * seed) & 0xffffffff;
+            vIndex ^= (vIndex >> NOISE_SHIFT);
+            vIndex &= 0xff;
+
+            return 1.0f - (vIndex / 127.5f);
+    }
+    
+    /// Looks up the gradients of the 8 corners of a lattice cell, in the
+    /// same corner order as interpGradientCoherentNoise visits them
+    private void fillCellGradients (int x0, int y0, int z0, int seed, float[] gradients)
+    {
+            int g = 0;
+            for (int dz = 0; dz < 2; dz++) {
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int vIndex = (NOISE_X_FACTOR * (x0 + dx) + NOISE_Y_FACTOR * (y0 + dy) + NOISE_Z_FACTOR * (z0 + dz) + NOISE_SEED_FACTOR * seed) & 0xffffffff;
+                        vIndex ^= (vIndex >> NOISE_SHIFT);
+                        vIndex &= 0xff;
+
+                        gradients[g++] = randomVectors3D[(vIndex<<2)];
+                        gradients[g++] = randomVectors3D[(vIndex<<2)+1];
+                        gradients[g++] = randomVectors3D[(vIndex<<2)+2];
+                    }
+                }
+            }
+    }
+
+    /// Same as the corner based interpGradientCoherentNoise, but with the
+    /// cell gradients already looked up by fillCellGradients
+    private float interpGradientCoherentNoise (float x, float y, float z, int x0, int y0, int z0, float[] gradients, float scale, int quality)
+    {
+            int x1 = x0 + 1;
+            int y1 = y0 + 1;
+            int z1 = z0 + 1;
+
+            float xs = sCurve (x - x0, quality);
+            float ys = sCurve (y - y0, quality);
+            float zs = sCurve (z - z0, quality);
+
+            float n0, n1, ix0, ix1, iy0, iy1;
+            n0 = dotGradient(gradients, 0, x, y, z, x0, y0, z0);
+            n1 = dotGradient(gradients, 1, x, y, z, x1, y0, z0);
+            ix0 = interpLinear (n0, n1, xs);
+            n0 = dotGradient(gradients, 2, x, y, z, x0, y1, z0);
+            n1 = dotGradient(gradients, 3, x, y, z, x1, y1, z0);
+            ix1 = interpLinear (n0, n1, xs);
+            iy0 = interpLinear (ix0, ix1, ys);
+            n0 = dotGradient(gradients, 4, x, y, z, x0, y0, z1);
+            n1 = dotGradient(gradients, 5, x, y, z, x1, y0, z1);
+            ix0 = interpLinear (n0, n1, xs);
+            n0 = dotGradient(gradients, 6, x, y, z, x0, y1, z1);
+            n1 = dotGradient(gradients, 7, x, y, z, x1, y1, z1);
+            ix1 = interpLinear (n0, n1, xs);
+            iy1 = interpLinear (ix0, ix1, ys);
+
+            return interpLinear (iy0, iy1, zs) * scale;
+    }
+
+    private float dotGradient (float[] gradients, int corner, float fx, float fy, float fz, int ix, int iy, int iz)
+    {
+            float xDelta = fx - ix;
+            float yDelta = fy - iy;
+            float zDelta = fz - iz;
+            return (gradients[corner*3] * xDelta + gradients[corner*3+1] * yDelta + gradients[corner*3+2] * zDelta);
+    }
+
+    /// Looks up the values of the 8 corners of a lattice cell, in the
+    /// same corner order as interpValueCoherentNoise visits them
+    private void fillCellValues (int x0, int y0, int z0, int seed, float[] values)
+    {
+            int v = 0;
+            for (int dz = 0; dz < 2; dz++) {
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        values[v++] = calcValueNoise(x0 + dx, y0 + dy, z0 + dz, seed);
+                    }
+                }
+            }
+    }
+
+    /// Same as the corner based interpValueCoherentNoise, but with the
+    /// cell values already looked up by fillCellValues
+    private float interpValueCoherentNoise (float x, float y, float z, int x0, int y0, int z0, float[] values, float scale, int quality)
+    {
+            float xs = sCurve (x - x0, quality);
+            float ys = sCurve (y - y0, quality);
+            float zs = sCurve (z - z0, quality);
+
+            float ix0, ix1, iy0, iy1;
+            ix0 = interpLinear (values[0], values[1], xs);
+            ix1 = interpLinear (values[2], values[3], xs);
+            iy0 = interpLinear (ix0, ix1, ys);
+            ix0 = interpLinear (values[4], values[5], xs);
+            ix1 = interpLinear (values[6], values[7], xs);
+            iy1 = interpLinear (ix0, ix1, ys);
+
+            return interpLinear (iy0, iy1, zs) * scale;
+    }
+
+    /// interpGradientCoherentNoise that also returns the partial derivatives
+    /// of the noise in derivative. The value is computed exactly like the
+    /// plain version, the derivative of the blend follows Inigo Quilez'
+    /// expansion of the trilinear interpolation.
+    private float interpGradientCoherentNoise (float x, float y, float z, int x0, int y0, int z0, float[] gradients, float scale, int quality, float[] derivative)
+    {
+            int x1 = x0 + 1;
+            int y1 = y0 + 1;
+            int z1 = z0 + 1;
+
+            float xs = sCurve (x - x0, quality);
+            float ys = sCurve (y - y0, quality);
+            float zs = sCurve (z - z0, quality);
+
+            float n000 = dotGradient(gradients, 0, x, y, z, x0, y0, z0);
+            float n100 = dotGradient(gradients, 1, x, y, z, x1, y0, z0);
+            float n010 = dotGradient(gradients, 2, x, y, z, x0, y1, z0);
+            float n110 = dotGradient(gradients, 3, x, y, z, x1, y1, z0);
+            float n001 = dotGradient(gradients, 4, x, y, z, x0, y0, z1);
+            float n101 = dotGradient(gradients, 5, x, y, z, x1, y0, z1);
+            float n011 = dotGradient(gradients, 6, x, y, z, x0, y1, z1);
+            float n111 = dotGradient(gradients, 7, x, y, z, x1, y1, z1);
+
+            float ix0, ix1, iy0, iy1;
+            ix0 = interpLinear (n000, n100, xs);
+            ix1 = interpLinear (n010, n110, xs);
+            iy0 = interpLinear (ix0, ix1, ys);
+            ix0 = interpLinear (n001, n101, xs);
+            ix1 = interpLinear (n011, n111, xs);
+            iy1 = interpLinear (ix0, ix1, ys);
+            float value = interpLinear (iy0, iy1, zs);
+
+            // change of the blend weights
+            float k1 = n100 - n000;
+            float k2 = n010 - n000;
+            float k3 = n001 - n000;
+            float k4 = n000 - n100 - n010 + n110;
+            float k5 = n000 - n010 - n001 + n011;
+            float k6 = n000 - n100 - n001 + n101;
+            float k7 = -n000 + n100 + n010 - n110 + n001 - n101 - n011 + n111;
+            float dxs = sCurveDerivative (x - x0, quality);
+            float dys = sCurveDerivative (y - y0, quality);
+            float dzs = sCurveDerivative (z - z0, quality);
+            derivative[0] = dxs * (k1 + k4 * ys + k6 * zs + k7 * ys * zs);
+            derivative[1] = dys * (k2 + k5 * zs + k4 * xs + k7 * zs * xs);
+            derivative[2] = dzs * (k3 + k6 * xs + k5 * ys + k7 * xs * ys);
+
+            // change of the corner dot products, the blended gradients
+            for (int axis = 0; axis < 3; axis++) {
+                ix0 = interpLinear (gradients[axis], gradients[3 + axis], xs);
+                ix1 = interpLinear (gradients[6 + axis], gradients[9 + axis], xs);
+                iy0 = interpLinear (ix0, ix1, ys);
+                ix0 = interpLinear (gradients[12 + axis], gradients[15 + axis], xs);
+                ix1 = interpLinear (gradients[18 + axis], gradients[21 + axis], xs);
+                iy1 = interpLinear (ix0, ix1, ys);
+                derivative[axis] = (derivative[axis] + interpLinear (iy0, iy1, zs)) * scale;
+            }
+
+            return value * scale;
+    }
+
+    /// interpValueCoherentNoise that also returns the partial derivatives
+    /// of the noise in derivative
+    private float interpValueCoherentNoise (float x, float y, float z, int x0, int y0, int z0, float[] values, float scale, int quality, float[] derivative)
+    {
+            float xs = sCurve (x - x0, quality);
+            float ys = sCurve (y - y0, quality);
+            float zs = sCurve (z - z0, quality);
+
+            float k1 = values[1] - values[0];
+            float k2 = values[2] - values[0];
+            float k3 = values[4] - values[0];
+            float k4 = values[0] - values[1] - values[2] + values[3];
+            float k5 = values[0] - values[2] - values[4] + values[6];
+            float k6 = values[0] - values[1] - values[4] + values[5];
+            float k7 = -values[0] + values[1] + values[2] - values[3] + values[4] - values[5] - values[6] + values[7];
+            derivative[0] = sCurveDerivative (x - x0, quality) * (k1 + k4 * ys + k6 * zs + k7 * ys * zs) * scale;
+            derivative[1] = sCurveDerivative (y - y0, quality) * (k2 + k5 * zs + k4 * xs + k7 * zs * xs) * scale;
+            derivative[2] = sCurveDerivative (z - z0, quality) * (k3 + k6 * xs + k5 * ys + k7 * xs * ys) * scale;
+
+            return interpValueCoherentNoise (x, y, z, x0, y0, z0, values, scale, quality);
+    }
+
+    /// Blending curve of a quality, used by the batch path
+    private float sCurve (float a, int quality)
+    {
+            switch (quality) {
+                case NOISE_QUALITY_LOW:
+                case NOISE_QUALITY_FAST_LOW:
+                    return a;
+                case NOISE_QUALITY_HIGH:
+                case NOISE_QUALITY_FAST_HIGH:
+                    return quinticCurve5 (a);
+                default:
+                    return cubicCurve3 (a);
+            }
+    }
+    
+    /// Derivative of sCurve
+    private float sCurveDerivative (float a, int quality)
+    {
+            switch (quality) {
+                case NOISE_QUALITY_LOW:
+                case NOISE_QUALITY_FAST_LOW:
+                    return 1f;
+                case NOISE_QUALITY_HIGH:
+                case NOISE_QUALITY_FAST_HIGH:
+                    return 30f * a * a * (a - 1f) * (a - 1f);
+                default:
+                    return 6f * a * (1f - a);
+            }
+    }
     
     /// Calculates a third-order interpolant
     private float cubicCurve3 (float a)
@@ -228,6 +842,15 @@ public class FractalDataSource implements HeightDataSource {
             return (a * a * (3f - 2f * a));
     }
     
+    /// Calculates a fifth-order interpolant
+    private float quinticCurve5 (float a)
+    {
+            float a3 = a * a * a;
+            float a4 = a3 * a;
+            float a5 = a4 * a;
+            return (6f * a5) - (15f * a4) + (10f * a3);
+    }
+    
     /// Performs linear interpolation
     private float interpLinear (float left, float right, float a)
     {
@@ -0,0 +1,40 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+/**
+ * GradientHeightDataSource is a <code>HeightDataSource</code> that can 
+ * return the analytic gradient of the height together with the height, so
+ * surface normals can be built without sampling neighbouring positions.
+ * 
+ */
+public interface GradientHeightDataSource extends HeightDataSource {
+    
+    /**
+     * Same as <code>getValues</code>, additionally writing the gradient of 
+     * the height with respect to the 3D sample position into 
+     * <code>gradientX/Y/Z</code>. Heights are identical to the ones 
+     * returned by <code>getValues</code>.
+     */
+    public void getValuesAndGradients(float[] x, float[] y, float[] z, float[] values, float[] gradientX, float[] gradientY, float[] gradientZ, int count, float spacing);
+    
+}
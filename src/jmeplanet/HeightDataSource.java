@@ -35,4 +35,38 @@ public interface HeightDataSource {
     
     public float getValue(Vector3f position);
     
+    /**
+     * Samples <code>count</code> unit sphere positions given as separate
+     * coordinate arrays and writes the heights into <code>values</code>.
+     * Implementations should return the same heights as 
+     * <code>getValue</code> but are free to share work between neighbouring
+     * samples, so callers should pass positions in grid (row) order.
+     */
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count);
+    
+    /**
+     * Same as <code>getValues</code>, but the samples are known to be
+     * <code>spacing</code> apart on the unit sphere. Implementations may 
+     * leave out detail that is finer than the sample spacing. A spacing of 
+     * 0 requests full detail.
+     */
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing);
+    
+    /**
+     * Writes a conservative lower and upper bound of the heights over the
+     * cube face rectangle spanned by <code>faceMin</code> and 
+     * <code>faceMax</code> (cube coordinates, as used by <code>Quad</code>)
+     * into <code>bounds[0]</code> and <code>bounds[1]</code>. Must not 
+     * sample the full resolution data. Null corners bound the whole planet.
+     */
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds);
+    
+    /**
+     * Largest sample spacing at which <code>getValues</code> still returns
+     * the full detail heights, so any smaller spacing gives the same values.
+     * Sources that don't use the spacing return 
+     * <code>Float.POSITIVE_INFINITY</code>.
+     */
+    public float getFullDetailSpacing();
+    
 }
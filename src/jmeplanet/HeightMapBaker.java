@@ -0,0 +1,207 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * HeightMapBaker samples a <code>HeightDataSource</code> once, offline, 
+ * and writes one height pyramid per cube face in the format read by 
+ * <code>BakedHeightDataSource</code>.
+ * 
+ * Usage: HeightMapBaker seed heightScale resolution file
+ */
+public class HeightMapBaker {
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: HeightMapBaker seed heightScale resolution file");
+            System.exit(1);
+        }
+        
+        FractalDataSource dataSource = new FractalDataSource(Integer.parseInt(args[0]));
+        dataSource.setHeightScale(Float.parseFloat(args[1]));
+        bake(dataSource, Integer.parseInt(args[2]), new File(args[3]));
+    }
+    
+    /**
+     * Bakes <code>dataSource</code> to <code>file</code>.
+     * @param dataSource The <code>HeightDataSource</code> to sample
+     * @param resolution Grid cells per face edge on the finest level, a power of two
+     * @param file The file to write
+     */
+    public static void bake(HeightDataSource dataSource, int resolution, File file) throws IOException {
+        if (resolution < 1 || Integer.bitCount(resolution) != 1)
+            throw new IllegalArgumentException("Resolution must be a power of two: " + resolution);
+        
+        int levels = Integer.numberOfTrailingZeros(resolution) + 1;
+        
+        long size = BakedHeightDataSource.HEADER_SIZE + 6L * levels * BakedHeightDataSource.DIRECTORY_ENTRY_SIZE;
+        for (int level = 0; level < levels; level++) {
+            long n = (resolution >> level) + 1;
+            long tiles = BakedHeightDataSource.getBoundsTiles(resolution, level);
+            size += 6 * (2 * n * n + 4 * tiles * tiles);
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Resolution " + resolution + " gives a file larger than 2 GB");
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            
+            // the directory is written last, once block ranges are known
+            long[][] offset = new long[6][levels];
+            long[][] tileOffset = new long[6][levels];
+            float[][] min = new float[6][levels];
+            float[][] max = new float[6][levels];
+            long position = BakedHeightDataSource.HEADER_SIZE + 6L * levels * BakedHeightDataSource.DIRECTORY_ENTRY_SIZE;
+            
+            for (int face = 0; face < 6; face++) {
+                float[] heights = sampleFace(dataSource, face, resolution);
+                int n = resolution + 1;
+                for (int level = 0; level < levels; level++) {
+                    if (level > 0) {
+                        heights = downsample(heights, n);
+                        n = (n - 1) / 2 + 1;
+                    }
+                    
+                    min[face][level] = Float.MAX_VALUE;
+                    max[face][level] = -Float.MAX_VALUE;
+                    for (int i = 0; i < n * n; i++) {
+                        min[face][level] = Math.min(min[face][level], heights[i]);
+                        max[face][level] = Math.max(max[face][level], heights[i]);
+                    }
+                    
+                    offset[face][level] = position;
+                    ByteBuffer block = quantize(heights, n * n, min[face][level], max[face][level]);
+                    while (block.hasRemaining())
+                        position += channel.write(block, position);
+                    
+                    // the bounds tiles follow the samples, so the reader 
+                    // bounds a region without touching its samples
+                    tileOffset[face][level] = position;
+                    ByteBuffer tiles = BakedHeightDataSource.getBoundsTiles(block, resolution, level);
+                    while (tiles.hasRemaining())
+                        position += channel.write(tiles, position);
+                }
+            }
+            
+            ByteBuffer header = ByteBuffer.allocate((int)(BakedHeightDataSource.HEADER_SIZE + 6L * levels * BakedHeightDataSource.DIRECTORY_ENTRY_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BakedHeightDataSource.MAGIC);
+            header.putInt(BakedHeightDataSource.VERSION);
+            header.putInt(resolution);
+            header.putInt(levels);
+            header.putFloat(dataSource.getHeightScale());
+            for (int face = 0; face < 6; face++) {
+                for (int level = 0; level < levels; level++) {
+                    header.putLong(offset[face][level]);
+                    header.putFloat(min[face][level]);
+                    header.putFloat(max[face][level]);
+                    header.putLong(tileOffset[face][level]);
+                }
+            }
+            header.flip();
+            long headerPosition = 0;
+            while (header.hasRemaining())
+                headerPosition += channel.write(header, headerPosition);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    protected static float[] sampleFace(HeightDataSource dataSource, int face, int resolution) {
+        int n = resolution + 1;
+        float[] heights = new float[n * n];
+        float[] x = new float[n];
+        float[] y = new float[n];
+        float[] z = new float[n];
+        float[] row = new float[n];
+        Vector3f pos = new Vector3f();
+        float step = 2f / resolution;
+        // the source takes the unit sphere spacing, not the cube face step
+        float spacing = Patch.getSampleSpacing(step);
+        
+        // one batch per row keeps the samples grid coherent
+        for (int j = 0; j < n; j++) {
+            float v = -1f + step * j;
+            for (int i = 0; i < n; i++) {
+                float u = -1f + step * i;
+                BakedHeightDataSource.faceToUnitSphere(face, u, v, pos);
+                x[i] = pos.x;
+                y[i] = pos.y;
+                z[i] = pos.z;
+            }
+            dataSource.getValues(x, y, z, row, n, spacing);
+            System.arraycopy(row, 0, heights, j * n, n);
+        }
+        return heights;
+    }
+    
+    /// Halves a corner sampled grid with a 3x3 tent filter. Edge samples
+    /// only filter along the edge, so neighbouring faces stay identical.
+    protected static float[] downsample(float[] heights, int n) {
+        int m = (n - 1) / 2 + 1;
+        float[] result = new float[m * m];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < m; i++) {
+                float sum = 0f;
+                float weight = 0f;
+                for (int dy = -1; dy <= 1; dy++) {
+                    int y = 2 * j + dy;
+                    if (y < 0 || y >= n || ((j == 0 || j == m - 1) && dy != 0))
+                        continue;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int x = 2 * i + dx;
+                        if (x < 0 || x >= n || ((i == 0 || i == m - 1) && dx != 0))
+                            continue;
+                        float w = (dx == 0 ? 2f : 1f) * (dy == 0 ? 2f : 1f);
+                        sum += heights[y * n + x] * w;
+                        weight += w;
+                    }
+                }
+                result[j * m + i] = sum / weight;
+            }
+        }
+        return result;
+    }
+    
+    protected static ByteBuffer quantize(float[] heights, int count, float min, float max) {
+        ByteBuffer block = ByteBuffer.allocate(count * 2);
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        float range = max - min;
+        for (int i = 0; i < count; i++) {
+            int q = range > 0f ? Math.round((heights[i] - min) / range * 65535f) : 0;
+            block.putShort((short)q);
+        }
+        block.flip();
+        return block;
+    }
+    
+}
@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/**
+ * Horizon tells which quads are hidden behind the curvature of a planet. 
+ * The planet is taken as a solid sphere of the occluder radius, low 
+ * enough that no terrain dips below it. A point at radius r can only be 
+ * seen from the camera along a line grazing that sphere, so it is at 
+ * most the horizon distance plus its own tangent length away. Anything 
+ * farther is below the horizon.
+ */
+public class Horizon {
+    
+    protected Vector3f cameraPosition = new Vector3f();
+    protected float occluderRadius;
+    protected float horizonDistance;
+    protected boolean enabled;
+    
+    /**
+     * Sets the camera, relative to the planet center, and the radius of 
+     * the occluding sphere. A camera inside the sphere disables the test.
+     */
+    public void set(Vector3f cameraPosition, float occluderRadius) {
+        this.cameraPosition.set(cameraPosition);
+        this.occluderRadius = occluderRadius;
+        float distanceSquared = cameraPosition.lengthSquared();
+        float radiusSquared = occluderRadius * occluderRadius;
+        this.enabled = occluderRadius > 0f && distanceSquared > radiusSquared;
+        this.horizonDistance = this.enabled ? FastMath.sqrt(distanceSquared - radiusSquared) : 0f;
+    }
+    
+    /**
+     * Returns true if nothing inside <code>aabb</code> at or below 
+     * <code>maxRadius</code> from the planet center can be seen.
+     */
+    public boolean isOccluded(BoundingBox aabb, float maxRadius) {
+        if (!this.enabled || maxRadius <= this.occluderRadius)
+            return false;
+        
+        float tangent = FastMath.sqrt(maxRadius * maxRadius - this.occluderRadius * this.occluderRadius);
+        return aabb.distanceToEdge(this.cameraPosition) > this.horizonDistance + tangent;
+    }
+    
+    /**
+     * How far the camera can move before <code>isOccluded</code> may change
+     * for <code>aabb</code>. Moving by d changes the distance to the box by
+     * at most d, and the horizon distance by at most d times the camera 
+     * distance over the horizon distance.
+     */
+    public float getStableDistance(BoundingBox aabb, float maxRadius) {
+        if (this.occluderRadius <= 0f || maxRadius <= this.occluderRadius)
+            return Float.MAX_VALUE;
+        
+        float cameraDistance = this.cameraPosition.length();
+        if (!this.enabled)
+            return this.occluderRadius - cameraDistance;
+        
+        float tangent = FastMath.sqrt(maxRadius * maxRadius - this.occluderRadius * this.occluderRadius);
+        float margin = Math.abs(aabb.distanceToEdge(this.cameraPosition) - this.horizonDistance - tangent);
+        return margin / (1f + cameraDistance / this.horizonDistance);
+    }
+    
+    public float getOccluderRadius() {
+        return this.occluderRadius;
+    }
+    
+    public float getHorizonDistance() {
+        return this.horizonDistance;
+    }
+    
+}
@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * LodCommitQueue spreads the scene graph changes of the quad tree over 
+ * frames.
+ * 
+ * During the camera update quads only request their swaps, a split showing
+ * the four children or a merge showing the quad itself. <code>commit</code>
+ * then applies them by descending screen space error until the per-frame 
+ * budget is used, at least one every frame. The rest is dropped, the quads
+ * request it again on the next update with their new priority.
+ * 
+ * Requests may come from several threads, <code>commit</code> is called on
+ * the render thread once they are all in.
+ */
+public class LodCommitQueue {
+    
+    /// Milliseconds a frame may spend on committing
+    public static final float DEFAULT_BUDGET = 2f;
+    
+    private static final Comparator<Quad> BY_PRIORITY = new Comparator<Quad>() {
+        public int compare(Quad a, Quad b) {
+            return Float.compare(b.commitPriority, a.commitPriority);
+        }
+    };
+    
+    private final List<Quad> pending = new ArrayList<Quad>();
+    private float budget;
+    private int committed;
+    private int deferred;
+    
+    public LodCommitQueue() {
+        this(DEFAULT_BUDGET);
+    }
+    
+    public LodCommitQueue(float budget) {
+        this.budget = budget;
+    }
+    
+    public void setBudget(float budget) {
+        this.budget = budget;
+    }
+    
+    public float getBudget() {
+        return this.budget;
+    }
+    
+    /// Quads of different cube faces may request swaps at once
+    protected synchronized void add(Quad quad) {
+        this.pending.add(quad);
+    }
+    
+    /**
+     * Applies the requested changes, most visible first, until the budget
+     * is used. Call once a frame after updating the quads.
+     */
+    public void commit() {
+        Collections.sort(this.pending, BY_PRIORITY);
+        
+        long start = System.nanoTime();
+        long budgetNanos = (long)(this.budget * 1e6f);
+        int count = this.pending.size();
+        int applied = 0;
+        for (; applied < count; applied++) {
+            if (applied > 0 && System.nanoTime() - start > budgetNanos)
+                break;
+            this.pending.get(applied).commit();
+        }
+        
+        for (int i = applied; i < count; i++)
+            this.pending.get(i).commitKind = Quad.Commit.None;
+        this.pending.clear();
+        
+        this.committed = applied;
+        this.deferred = count - applied;
+    }
+    
+    /// Changes applied by the last commit
+    public int getCommittedCount() {
+        return this.committed;
+    }
+    
+    /// Changes left for later frames by the last commit
+    public int getDeferredCount() {
+        return this.deferred;
+    }
+    
+}
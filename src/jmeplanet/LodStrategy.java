@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * LodStrategy decides how far the quads of a planet are refined.
+ * 
+ * A quad asks for its error as seen from the camera. A shown quad splits
+ * once the error exceeds <code>getSplitThreshold</code>, a split quad 
+ * merges back once it drops below <code>getMergeThreshold</code>. A merge
+ * threshold below the split threshold keeps quads near the boundary from 
+ * splitting and merging on alternate frames. The error also orders the
+ * swaps of the commit queue.
+ */
+public interface LodStrategy {
+    
+    /**
+     * Called once a frame before the quads are updated.
+     */
+    public void setCamera(Camera camera);
+    
+    /**
+     * Error of showing <code>quad</code> instead of its children, seen
+     * from <code>position</code>.
+     */
+    public float getError(Quad quad, Vector3f position);
+    
+    /**
+     * How far the camera can move from <code>position</code> before the
+     * error of <code>quad</code> may cross <code>threshold</code>. Quads 
+     * aren't visited again until it has.
+     */
+    public float getStableDistance(Quad quad, Vector3f position, float threshold);
+    
+    public float getSplitThreshold();
+    
+    public float getMergeThreshold();
+    
+}
@@ -0,0 +1,420 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * NoiseGraphDataSource evaluates a graph of <code>NoiseModule</code>s as a
+ * <code>HeightDataSource</code>.
+ * 
+ * The graph is flattened once into a list of instructions over registers,
+ * in dependency order, with modules shared by several parents evaluated 
+ * only once. A batch is then evaluated one instruction at a time over all
+ * samples, so there is one switch per instruction and batch instead of a
+ * tree of calls per sample, and sources get whole rows through their own 
+ * batch <code>getValues</code>.
+ * 
+ * Modules produce unscaled heights; the graph output is multiplied by the
+ * height scale of this data source.
+ */
+public class NoiseGraphDataSource implements HeightDataSource {
+    
+    protected static final int OP_SOURCE = 0;
+    protected static final int OP_CONSTANT = 1;
+    protected static final int OP_ADD = 2;
+    protected static final int OP_MULTIPLY = 3;
+    protected static final int OP_MIN = 4;
+    protected static final int OP_MAX = 5;
+    protected static final int OP_BLEND = 6;
+    protected static final int OP_SCALE_BIAS = 7;
+    protected static final int OP_ABS = 8;
+    protected static final int OP_CLAMP = 9;
+    protected static final int OP_WARP = 10;
+    
+    protected float heightScale = 1f;
+    
+    // Flattened program. Every instruction writes register dst[i]. 
+    // Sources sample domain[i]; a warp writes domain dst[i] instead.
+    protected int instructionCount;
+    protected int[] op;
+    protected int[] dst;
+    protected int[] src0;
+    protected int[] src1;
+    protected int[] src2;
+    protected int[] domain;
+    protected float[] param0;
+    protected float[] param1;
+    protected HeightDataSource[] sources;
+    protected int registerCount;
+    protected int domainCount;
+    protected int resultRegister;
+    
+    // only used while compiling
+    private List<int[]> program;
+    private List<float[]> programParams;
+    private List<HeightDataSource> programSources;
+    
+    public NoiseGraphDataSource(NoiseModule root) {
+        compile(root);
+    }
+    
+    public void setHeightScale(float heightScale) {
+        this.heightScale = heightScale;
+    }
+    
+    public float getHeightScale() {
+        return this.heightScale;
+    }
+    
+    public int getInstructionCount() {
+        return this.instructionCount;
+    }
+    
+    public float getValue(Vector3f position) {
+        float[] value = new float[1];
+        getValues(new float[] { position.x }, new float[] { position.y }, new float[] { position.z }, value, 1, 0f);
+        return value[0];
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count) {
+        getValues(x, y, z, values, count, 0f);
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing) {
+        float[][] registers = new float[this.registerCount][count];
+        // domain 0 is the sample position itself
+        float[][] domainX = new float[this.domainCount][];
+        float[][] domainY = new float[this.domainCount][];
+        float[][] domainZ = new float[this.domainCount][];
+        domainX[0] = x;
+        domainY[0] = y;
+        domainZ[0] = z;
+        
+        for (int i = 0; i < this.instructionCount; i++) {
+            float[] out = registers[this.dst[i]];
+            switch (this.op[i]) {
+                case OP_SOURCE: {
+                    int d = this.domain[i];
+                    this.sources[i].getValues(domainX[d], domainY[d], domainZ[d], out, count, spacing);
+                    break;
+                }
+                case OP_CONSTANT: {
+                    float c = this.param0[i];
+                    for (int s = 0; s < count; s++)
+                        out[s] = c;
+                    break;
+                }
+                case OP_ADD: {
+                    float[] a = registers[this.src0[i]];
+                    float[] b = registers[this.src1[i]];
+                    for (int s = 0; s < count; s++)
+                        out[s] = a[s] + b[s];
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    float[] a = registers[this.src0[i]];
+                    float[] b = registers[this.src1[i]];
+                    for (int s = 0; s < count; s++)
+                        out[s] = a[s] * b[s];
+                    break;
+                }
+                case OP_MIN: {
+                    float[] a = registers[this.src0[i]];
+                    float[] b = registers[this.src1[i]];
+                    for (int s = 0; s < count; s++)
+                        out[s] = Math.min(a[s], b[s]);
+                    break;
+                }
+                case OP_MAX: {
+                    float[] a = registers[this.src0[i]];
+                    float[] b = registers[this.src1[i]];
+                    for (int s = 0; s < count; s++)
+                        out[s] = Math.max(a[s], b[s]);
+                    break;
+                }
+                case OP_BLEND: {
+                    float[] a = registers[this.src0[i]];
+                    float[] b = registers[this.src1[i]];
+                    float[] m = registers[this.src2[i]];
+                    for (int s = 0; s < count; s++) {
+                        float t = Math.min(Math.max(m[s], 0f), 1f);
+                        out[s] = a[s] + (b[s] - a[s]) * t;
+                    }
+                    break;
+                }
+                case OP_SCALE_BIAS: {
+                    float[] a = registers[this.src0[i]];
+                    float scale = this.param0[i];
+                    float bias = this.param1[i];
+                    for (int s = 0; s < count; s++)
+                        out[s] = a[s] * scale + bias;
+                    break;
+                }
+                case OP_ABS: {
+                    float[] a = registers[this.src0[i]];
+                    for (int s = 0; s < count; s++)
+                        out[s] = Math.abs(a[s]);
+                    break;
+                }
+                case OP_CLAMP: {
+                    float[] a = registers[this.src0[i]];
+                    float min = this.param0[i];
+                    float max = this.param1[i];
+                    for (int s = 0; s < count; s++)
+                        out[s] = Math.min(Math.max(a[s], min), max);
+                    break;
+                }
+                case OP_WARP: {
+                    // new domain = parent domain + amount * (wx, wy, wz)
+                    int parent = this.domain[i];
+                    int d = this.dst[i];
+                    float[] wx = registers[this.src0[i]];
+                    float[] wy = registers[this.src1[i]];
+                    float[] wz = registers[this.src2[i]];
+                    float amount = this.param0[i];
+                    domainX[d] = new float[count];
+                    domainY[d] = new float[count];
+                    domainZ[d] = new float[count];
+                    for (int s = 0; s < count; s++) {
+                        domainX[d][s] = domainX[parent][s] + wx[s] * amount;
+                        domainY[d][s] = domainY[parent][s] + wy[s] * amount;
+                        domainZ[d][s] = domainZ[parent][s] + wz[s] * amount;
+                    }
+                    break;
+                }
+            }
+        }
+        
+        float[] result = registers[this.resultRegister];
+        for (int s = 0; s < count; s++)
+            values[s] = result[s] * this.heightScale;
+    }
+    
+    public float getFullDetailSpacing() {
+        float spacing = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < this.instructionCount; i++) {
+            if (this.op[i] == OP_SOURCE)
+                spacing = Math.min(spacing, this.sources[i].getFullDetailSpacing());
+        }
+        return spacing;
+    }
+    
+    /**
+     * Interval arithmetic over the program, with each source bounding its
+     * own part of the region. Warped sources sample positions outside the
+     * region and are bounded over the whole planet.
+     */
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds) {
+        float[] low = new float[this.registerCount];
+        float[] high = new float[this.registerCount];
+        float[] sourceBounds = new float[2];
+        
+        for (int i = 0; i < this.instructionCount; i++) {
+            int d = this.dst[i];
+            int a = this.src0[i];
+            int b = this.src1[i];
+            switch (this.op[i]) {
+                case OP_SOURCE:
+                    if (this.domain[i] == 0)
+                        this.sources[i].getHeightBounds(faceMin, faceMax, sourceBounds);
+                    else
+                        this.sources[i].getHeightBounds(null, null, sourceBounds);
+                    low[d] = sourceBounds[0];
+                    high[d] = sourceBounds[1];
+                    break;
+                case OP_CONSTANT:
+                    low[d] = this.param0[i];
+                    high[d] = this.param0[i];
+                    break;
+                case OP_ADD:
+                    low[d] = low[a] + low[b];
+                    high[d] = high[a] + high[b];
+                    break;
+                case OP_MULTIPLY: {
+                    float p0 = low[a] * low[b];
+                    float p1 = low[a] * high[b];
+                    float p2 = high[a] * low[b];
+                    float p3 = high[a] * high[b];
+                    low[d] = Math.min(Math.min(p0, p1), Math.min(p2, p3));
+                    high[d] = Math.max(Math.max(p0, p1), Math.max(p2, p3));
+                    break;
+                }
+                case OP_MIN:
+                    low[d] = Math.min(low[a], low[b]);
+                    high[d] = Math.min(high[a], high[b]);
+                    break;
+                case OP_MAX:
+                    low[d] = Math.max(low[a], low[b]);
+                    high[d] = Math.max(high[a], high[b]);
+                    break;
+                case OP_BLEND:
+                    // the blend always lies between its two inputs
+                    low[d] = Math.min(low[a], low[b]);
+                    high[d] = Math.max(high[a], high[b]);
+                    break;
+                case OP_SCALE_BIAS: {
+                    float l = low[a] * this.param0[i] + this.param1[i];
+                    float h = high[a] * this.param0[i] + this.param1[i];
+                    low[d] = Math.min(l, h);
+                    high[d] = Math.max(l, h);
+                    break;
+                }
+                case OP_ABS:
+                    if (low[a] >= 0f) {
+                        low[d] = low[a];
+                        high[d] = high[a];
+                    } else if (high[a] <= 0f) {
+                        low[d] = -high[a];
+                        high[d] = -low[a];
+                    } else {
+                        low[d] = 0f;
+                        high[d] = Math.max(-low[a], high[a]);
+                    }
+                    break;
+                case OP_CLAMP:
+                    low[d] = Math.min(Math.max(low[a], this.param0[i]), this.param1[i]);
+                    high[d] = Math.min(Math.max(high[a], this.param0[i]), this.param1[i]);
+                    break;
+                case OP_WARP:
+                    // writes a domain, not a register
+                    break;
+            }
+        }
+        
+        float l = low[this.resultRegister] * this.heightScale;
+        float h = high[this.resultRegister] * this.heightScale;
+        bounds[0] = Math.min(l, h);
+        bounds[1] = Math.max(l, h);
+    }
+    
+    protected void compile(NoiseModule root) {
+        this.program = new ArrayList<int[]>();
+        this.programParams = new ArrayList<float[]>();
+        this.programSources = new ArrayList<HeightDataSource>();
+        this.domainCount = 1;
+        this.registerCount = 0;
+        
+        this.resultRegister = emit(root, 0, new ArrayList<IdentityHashMap<NoiseModule, Integer>>());
+        
+        this.instructionCount = this.program.size();
+        this.op = new int[this.instructionCount];
+        this.dst = new int[this.instructionCount];
+        this.src0 = new int[this.instructionCount];
+        this.src1 = new int[this.instructionCount];
+        this.src2 = new int[this.instructionCount];
+        this.domain = new int[this.instructionCount];
+        this.param0 = new float[this.instructionCount];
+        this.param1 = new float[this.instructionCount];
+        this.sources = new HeightDataSource[this.instructionCount];
+        for (int i = 0; i < this.instructionCount; i++) {
+            int[] instruction = this.program.get(i);
+            this.op[i] = instruction[0];
+            this.dst[i] = instruction[1];
+            this.src0[i] = instruction[2];
+            this.src1[i] = instruction[3];
+            this.src2[i] = instruction[4];
+            this.domain[i] = instruction[5];
+            this.param0[i] = this.programParams.get(i)[0];
+            this.param1[i] = this.programParams.get(i)[1];
+            this.sources[i] = this.programSources.get(i);
+        }
+        
+        this.program = null;
+        this.programParams = null;
+        this.programSources = null;
+    }
+    
+    /// Emits module in post order and returns its register. A module is 
+    /// emitted once per domain it is sampled in.
+    private int emit(NoiseModule module, int moduleDomain, List<IdentityHashMap<NoiseModule, Integer>> emitted) {
+        while (emitted.size() <= moduleDomain)
+            emitted.add(new IdentityHashMap<NoiseModule, Integer>());
+        Integer existing = emitted.get(moduleDomain).get(module);
+        if (existing != null)
+            return existing;
+        
+        int register;
+        switch (module.type) {
+            case Source:
+                register = add(OP_SOURCE, -1, -1, -1, moduleDomain, 0f, 0f, module.source);
+                break;
+            case Constant:
+                register = add(OP_CONSTANT, -1, -1, -1, moduleDomain, module.param0, 0f, null);
+                break;
+            case Add:
+                register = add(OP_ADD, emit(module.inputs[0], moduleDomain, emitted), emit(module.inputs[1], moduleDomain, emitted), -1, moduleDomain, 0f, 0f, null);
+                break;
+            case Multiply:
+                register = add(OP_MULTIPLY, emit(module.inputs[0], moduleDomain, emitted), emit(module.inputs[1], moduleDomain, emitted), -1, moduleDomain, 0f, 0f, null);
+                break;
+            case Min:
+                register = add(OP_MIN, emit(module.inputs[0], moduleDomain, emitted), emit(module.inputs[1], moduleDomain, emitted), -1, moduleDomain, 0f, 0f, null);
+                break;
+            case Max:
+                register = add(OP_MAX, emit(module.inputs[0], moduleDomain, emitted), emit(module.inputs[1], moduleDomain, emitted), -1, moduleDomain, 0f, 0f, null);
+                break;
+            case Blend:
+                register = add(OP_BLEND, emit(module.inputs[0], moduleDomain, emitted), emit(module.inputs[1], moduleDomain, emitted), emit(module.inputs[2], moduleDomain, emitted), moduleDomain, 0f, 0f, null);
+                break;
+            case ScaleBias:
+                register = add(OP_SCALE_BIAS, emit(module.inputs[0], moduleDomain, emitted), -1, -1, moduleDomain, module.param0, module.param1, null);
+                break;
+            case Abs:
+                register = add(OP_ABS, emit(module.inputs[0], moduleDomain, emitted), -1, -1, moduleDomain, 0f, 0f, null);
+                break;
+            case Clamp:
+                register = add(OP_CLAMP, emit(module.inputs[0], moduleDomain, emitted), -1, -1, moduleDomain, module.param0, module.param1, null);
+                break;
+            case Warp: {
+                // the warp offsets live in the current domain, the warped 
+                // source gets a domain of its own
+                int wx = emit(module.inputs[1], moduleDomain, emitted);
+                int wy = emit(module.inputs[2], moduleDomain, emitted);
+                int wz = emit(module.inputs[3], moduleDomain, emitted);
+                int warpedDomain = this.domainCount++;
+                this.program.add(new int[] { OP_WARP, warpedDomain, wx, wy, wz, moduleDomain });
+                this.programParams.add(new float[] { module.param0, 0f });
+                this.programSources.add(null);
+                register = emit(module.inputs[0], warpedDomain, emitted);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown noise module: " + module.type);
+        }
+        
+        emitted.get(moduleDomain).put(module, register);
+        return register;
+    }
+    
+    private int add(int opcode, int a, int b, int c, int moduleDomain, float p0, float p1, HeightDataSource source) {
+        int register = this.registerCount++;
+        this.program.add(new int[] { opcode, register, a, b, c, moduleDomain });
+        this.programParams.add(new float[] { p0, p1 });
+        this.programSources.add(source);
+        return register;
+    }
+    
+}
@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+/**
+ * NoiseModule is a node of a terrain noise graph: a source, a combiner of
+ * other modules, or a modifier of one module. Modules only describe the
+ * graph; <code>NoiseGraphDataSource</code> flattens it into a single
+ * evaluation loop.
+ * 
+ * Example, ridged mountains only where the continent mask is high:
+ * <pre>
+ * NoiseModule continents = NoiseModule.fbm(1, 6, 0.5f);
+ * NoiseModule mountains = NoiseModule.ridged(2, 10, 2f);
+ * NoiseModule terrain = NoiseModule.blend(continents, mountains, continents.scaleBias(4f, -0.5f));
+ * </pre>
+ */
+public class NoiseModule {
+    
+    enum Type {
+        Source,
+        Constant,
+        Add,
+        Multiply,
+        Min,
+        Max,
+        Blend,
+        ScaleBias,
+        Abs,
+        Clamp,
+        Warp
+    }
+    
+    protected Type type;
+    protected NoiseModule[] inputs;
+    protected HeightDataSource source;
+    protected float param0;
+    protected float param1;
+    
+    protected NoiseModule(Type type, NoiseModule[] inputs, HeightDataSource source, float param0, float param1) {
+        this.type = type;
+        this.inputs = inputs;
+        this.source = source;
+        this.param0 = param0;
+        this.param1 = param1;
+    }
+    
+    // Sources
+    
+    /**
+     * Any <code>HeightDataSource</code> as a source, sampled with its own
+     * height scale.
+     */
+    public static NoiseModule source(HeightDataSource source) {
+        return new NoiseModule(Type.Source, new NoiseModule[0], source, 0f, 0f);
+    }
+    
+    /// Standard quality fBm with a height scale of 1
+    public static NoiseModule fbm(int seed, int octaveCount, float frequency) {
+        FractalDataSource fractal = new FractalDataSource(seed, FractalDataSource.NOISE_QUALITY_STD, octaveCount, frequency, 2.0f, 0.625f);
+        return source(fractal);
+    }
+    
+    /// Standard quality ridged fBm with a height scale of 1
+    public static NoiseModule ridged(int seed, int octaveCount, float frequency) {
+        FractalDataSource fractal = new FractalDataSource(seed, FractalDataSource.NOISE_QUALITY_STD, octaveCount, frequency, 2.0f, 0.5f);
+        fractal.setRidged(true);
+        return source(fractal);
+    }
+    
+    public static NoiseModule constant(float value) {
+        return new NoiseModule(Type.Constant, new NoiseModule[0], null, value, 0f);
+    }
+    
+    // Combiners
+    
+    public static NoiseModule add(NoiseModule a, NoiseModule b) {
+        return new NoiseModule(Type.Add, new NoiseModule[] { a, b }, null, 0f, 0f);
+    }
+    
+    public static NoiseModule multiply(NoiseModule a, NoiseModule b) {
+        return new NoiseModule(Type.Multiply, new NoiseModule[] { a, b }, null, 0f, 0f);
+    }
+    
+    public static NoiseModule min(NoiseModule a, NoiseModule b) {
+        return new NoiseModule(Type.Min, new NoiseModule[] { a, b }, null, 0f, 0f);
+    }
+    
+    public static NoiseModule max(NoiseModule a, NoiseModule b) {
+        return new NoiseModule(Type.Max, new NoiseModule[] { a, b }, null, 0f, 0f);
+    }
+    
+    /// Linear blend from a to b by mask, with the mask clamped to [0, 1]
+    public static NoiseModule blend(NoiseModule a, NoiseModule b, NoiseModule mask) {
+        return new NoiseModule(Type.Blend, new NoiseModule[] { a, b, mask }, null, 0f, 0f);
+    }
+    
+    /**
+     * Domain warp: samples <code>source</code> at the position offset by
+     * <code>amount</code> times the three warp modules.
+     */
+    public static NoiseModule warp(NoiseModule source, NoiseModule warpX, NoiseModule warpY, NoiseModule warpZ, float amount) {
+        return new NoiseModule(Type.Warp, new NoiseModule[] { source, warpX, warpY, warpZ }, null, amount, 0f);
+    }
+    
+    // Modifiers
+    
+    public NoiseModule scaleBias(float scale, float bias) {
+        return new NoiseModule(Type.ScaleBias, new NoiseModule[] { this }, null, scale, bias);
+    }
+    
+    public NoiseModule abs() {
+        return new NoiseModule(Type.Abs, new NoiseModule[] { this }, null, 0f, 0f);
+    }
+    
+    public NoiseModule clamp(float min, float max) {
+        return new NoiseModule(Type.Clamp, new NoiseModule[] { this }, null, min, max);
+    }
+    
+}
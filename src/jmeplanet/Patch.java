@@ -21,15 +21,21 @@ THE SOFTWARE.
 */
 package jmeplanet;
 
-import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
 import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
 import com.jme3.util.BufferUtils;
 import com.jme3.bounding.BoundingBox;
-import com.jme3.math.ColorRGBA;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Patch
@@ -52,6 +58,8 @@ public class Patch {
     protected HeightDataSource dataSource;
     protected int position;
     protected boolean skirting;
+    protected boolean analyticNormals;
+    protected boolean packedVertices;
     
     protected int padding = 2;
     protected Mesh mesh;
@@ -65,7 +73,58 @@ public class Patch {
     protected int quadTriangles;
     protected int skirtTriangles;
     protected int totalTriangles;
-    protected int[] edgeVertexIndex;
+    protected PatchTopology topology;
+    protected EdgeSampleExchange sampleExchange;
+    protected float packedScale = 1f;
+    protected float geometricError;
+    protected DirectBufferPool bufferPool;
+    protected List<ByteBuffer> pooledBuffers;
+    protected long byteSize;
+    
+    // Face mapping of the grid, see generateVertexPositions
+    protected int side;
+    protected float startX;
+    protected float startY;
+    protected float endX;
+    protected float endY;
+    protected float sideZ;
+    
+    // Samples of the padded grid kept for the children, see setRetainSamples
+    protected boolean retainSamples;
+    protected Patch parentPatch;
+    protected float sampleSpacing;
+    protected float sampleHeightScale;
+    protected float[] sampleX;
+    protected float[] sampleY;
+    protected float[] sampleZ;
+    protected float[] sampleHeight;
+    protected float[] sampleGradientX;
+    protected float[] sampleGradientY;
+    protected float[] sampleGradientZ;
+    
+    // Unit sphere spacing per cube step at the face corners
+    private static final float CORNER_SPACING = (float) Math.sqrt(2) / 3f;
+    
+    // Neighbours of a vertex for the normals, going around it: next x, 
+    // next x previous y, previous y, previous x, previous x next y, next y
+    private static final int[] NEIGHBOUR_X = { 1, 1, 0, -1, -1, 0 };
+    private static final int[] NEIGHBOUR_Y = { 0, -1, -1, 0, 1, 1 };
+    
+    // Vertex colors by height: ocean, sand, grass, mountains
+    private static final float[][] HEIGHT_COLORS = {
+        { 0.0f, 0.4f, 0.8f, 1.0f },
+        { 0.83f, 0.72f, 0.34f, 1.0f },
+        { 0.2f, 0.6f, 0.1f, 1.0f },
+        { 0.5f, 0.5f, 0.5f, 1.0f }
+    };
+    
+    // Working arrays of the builder, reused by every patch built on a thread
+    private static final ThreadLocal<PatchScratch> SCRATCH = new ThreadLocal<PatchScratch>() {
+        @Override
+        protected PatchScratch initialValue() {
+            return new PatchScratch();
+        }
+    };
    
     public Patch(
             int quads,
@@ -95,6 +154,19 @@ public class Patch {
     
     public Mesh prepare() {
         
+        // Normals from the height gradient don't need the padding ring
+        if (this.analyticNormals && !(this.dataSource instanceof GradientHeightDataSource))
+            this.analyticNormals = false;
+        return prepare(this.analyticNormals ? 0 : 2);
+    }
+    
+    /**
+     * Builds the mesh from a grid with <code>padding</code> extra rows of 
+     * vertices around it, for the neighbour normals at the edges.
+     */
+    protected Mesh prepare(int padding) {
+        this.padding = padding;
+        
         this.quadVertexCount = (this.quads + 1) * (this.quads + 1);
         this.quadVertexCountPadded = (this.quads + 2*this.padding + 1) * (this.quads + 2*this.padding + 1);
         this.skirtVertexCount = this.quads * 4;
@@ -105,72 +177,77 @@ public class Patch {
         this.totalTriangles = quadTriangles + skirtTriangles;
 
         // Calculate vertex positions, normals, etc
-        Vector3f[] vertexPosition = new Vector3f[quadVertexCountPadded];
-        float[] vertexColor = new float[4 * quadVertexCountPadded];
-        Vector3f[] vertexNormal = new Vector3f[quadVertexCount];
-        Vector2f[] textureCoordinate = new Vector2f[quadVertexCount];
-        
-        generateVertexPositions(vertexPosition, vertexColor);
-        generateVertexNormals(vertexNormal, textureCoordinate, vertexPosition);
+        PatchScratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(quadVertexCountPadded, quadVertexCount);
+        generateVertexPositions(scratch);
+        generateVertexNormals(scratch);
         
+        // Edge vertices and indices only depend on the number of quads
+        this.topology = PatchTopology.get(this.quads);
+        float heightScale = this.dataSource.getHeightScale();
+        if (this.packedVertices)
+            this.mesh = createPackedMesh(scratch, heightScale);
+        else
+            this.mesh = createFloatMesh(scratch, heightScale);
+        return this.mesh;
+    }
+    
+    /**
+     * Float layout of the vertices: positions relative to the patch center,
+     * normals, vertex colors, and the global planet texture coordinates 
+     * with the edge flags.
+     */
+    protected Mesh createFloatMesh(PatchScratch scratch, float heightScale) {
         // Create final buffers
-        FloatBuffer vertexBuffer = BufferUtils.createFloatBuffer(3 * totalVertexCount);
-        FloatBuffer colorBuffer = BufferUtils.createFloatBuffer((4 * totalVertexCount));
-        FloatBuffer normalBuffer = BufferUtils.createFloatBuffer(3 * totalVertexCount);
-        FloatBuffer textureBuffer = BufferUtils.createFloatBuffer(4 * quadVertexCount);
+        FloatBuffer vertexBuffer = createFloatBuffer(3 * totalVertexCount);
+        FloatBuffer colorBuffer = createFloatBuffer((4 * totalVertexCount));
+        FloatBuffer normalBuffer = createFloatBuffer(3 * totalVertexCount);
+        FloatBuffer textureBuffer = createFloatBuffer(4 * quadVertexCount);
         
         // Fill final buffers
+        float[] position = scratch.position;
+        float[] normal = scratch.normal;
+        float[] height = scratch.height;
         for (int y = 0; y < (this.quads + 1); y++)
         {
+            float jy = (float)y / this.quads;
             for (int x = 0; x < (this.quads + 1); x++)
             {
                 int vi = (this.quads + 2 * this.padding + 1) * (y + this.padding) + (x + this.padding);
                 int ni = (this.quads + 1) * y + x;
 
                 // Vertex pos
-                vertexBuffer.put(vertexPosition[vi].x);
-                vertexBuffer.put(vertexPosition[vi].y);
-                vertexBuffer.put(vertexPosition[vi].z);
+                vertexBuffer.put(position[vi * 3]);
+                vertexBuffer.put(position[vi * 3 + 1]);
+                vertexBuffer.put(position[vi * 3 + 2]);
                 // Vertex color
-                colorBuffer.put(vertexColor[vi * 4 ]);
-                colorBuffer.put(vertexColor[vi * 4 + 1]);
-                colorBuffer.put(vertexColor[vi * 4 + 2]);
-                colorBuffer.put(vertexColor[vi * 4 + 3]);
+                putHeightColor(colorBuffer, height[vi], heightScale);
                 // Vertex normal
-                normalBuffer.put(vertexNormal[ni].x);
-                normalBuffer.put(vertexNormal[ni].y);
-                normalBuffer.put(vertexNormal[ni].z);
+                normalBuffer.put(normal[ni * 3]);
+                normalBuffer.put(normal[ni * 3 + 1]);
+                normalBuffer.put(normal[ni * 3 + 2]);
                 // Texture coordinates (this is global planet texture coordinates)
-                textureBuffer.put(textureCoordinate[ni].x);
-                textureBuffer.put(textureCoordinate[ni].y);
+                float jx = (float)x / this.quads;
+                textureBuffer.put((1 - jx) * this.texXMin + jx * this.texXMax);
+                textureBuffer.put((1 - jy) * this.texYMin + jy * this.texYMax);
                 textureBuffer.put((x == 0 ? 0.0f : (x == this.quads ? 1.0f : 0.5f)));
                 textureBuffer.put((y == 0 ? 0.0f : (y == this.quads ? 1.0f : 0.5f)));
             }
         }
         
-        // Get the patch's edge vertex indexes going clockwise
-        int indexEdgeVertexIndex = 0;
-        this.edgeVertexIndex = new int[skirtVertexCount];
-        for (int i = 0; i < verticesPerSide; i++)
-            edgeVertexIndex[indexEdgeVertexIndex++] = i;
-        for (int i = verticesPerSide + this.quads; i < quadVertexCount + 1; i+=verticesPerSide)
-            edgeVertexIndex[indexEdgeVertexIndex++] = i;
-        for (int i = quadVertexCount - 2; i >= verticesPerSide * quads; i--)
-            edgeVertexIndex[indexEdgeVertexIndex++] = i;
-        for (int i = verticesPerSide * quads - verticesPerSide; i > 0; i-=verticesPerSide)
-            edgeVertexIndex[indexEdgeVertexIndex++] = i;
+        int[] edgeVertexIndex = this.topology.getEdgeVertexIndex();
         
         // Add skirt to end of vertex buffer
+        // Make skirt 1/10th the height scale
+        Vector3f skirtDirection = scratch.vector.set(this.center).normalizeLocal();
+        float skirtDepth = (heightScale / 10) + 0.01f;
+        float skirtX = skirtDirection.x * skirtDepth;
+        float skirtY = skirtDirection.y * skirtDepth;
+        float skirtZ = skirtDirection.z * skirtDepth;
         for (int i = 0; i < skirtVertexCount; i++) {
-            // Make skirt 1/10th the height scale
-            Vector3f v = new Vector3f(
-                    vertexBuffer.get(3 * edgeVertexIndex[i]), 
-                    vertexBuffer.get(3 * edgeVertexIndex[i] + 1),
-                    vertexBuffer.get(3 * edgeVertexIndex[i] + 2));
-            v.subtractLocal(this.center.normalize().mult((this.dataSource.getHeightScale() / 10) + 0.01f));
-            vertexBuffer.put(v.x);
-            vertexBuffer.put(v.y);
-            vertexBuffer.put(v.z);
+            vertexBuffer.put(vertexBuffer.get(3 * edgeVertexIndex[i]) - skirtX);
+            vertexBuffer.put(vertexBuffer.get(3 * edgeVertexIndex[i] + 1) - skirtY);
+            vertexBuffer.put(vertexBuffer.get(3 * edgeVertexIndex[i] + 2) - skirtZ);
 
             normalBuffer.put(normalBuffer.get(3 * edgeVertexIndex[i]));
             normalBuffer.put(normalBuffer.get(3 * edgeVertexIndex[i] + 1));
@@ -182,19 +259,156 @@ public class Patch {
             colorBuffer.put(colorBuffer.get(edgeVertexIndex[i] * 4 + 3));   
         }
       
-        // Generate Indices
-        IntBuffer indexBuffer = generateIndices();
-
-        // Set mesh buffers
-        mesh = new Mesh();
-        mesh.setBuffer(Type.Position, 3, vertexBuffer);
-        mesh.setBuffer(Type.Normal, 3, normalBuffer);
-        mesh.setBuffer(Type.TexCoord, 4, textureBuffer);
-        mesh.setBuffer(Type.Color, 4, colorBuffer);
-        mesh.setBuffer(Type.Index, 3, indexBuffer);  
-        mesh.updateBound();
+        // Set mesh buffers, the index buffer is shared by all patches
+        Mesh floatMesh = new Mesh();
+        floatMesh.setBuffer(Type.Position, 3, vertexBuffer);
+        floatMesh.setBuffer(Type.Normal, 3, normalBuffer);
+        floatMesh.setBuffer(Type.TexCoord, 4, textureBuffer);
+        floatMesh.setBuffer(Type.Color, 4, colorBuffer);
+        floatMesh.setBuffer(this.topology.getIndexBuffer(this.skirting));
+        floatMesh.updateBound();
+        
+        return floatMesh; 
+    }
+    
+    /**
+     * Packed layout of the vertices, 24 bytes a vertex instead of 56:
+     * - Position: 4 normalized shorts, x, y, z relative to the patch center
+     *   divided by <code>getPackedScale()</code>, and w = 1. The geometry is
+     *   scaled back up by its local scale.
+     * - Normal: 4 normalized bytes, the octahedral encoded normal in x, y and
+     *   the edge flags (0, 0.5 or 1) in z, w.
+     * - Color: 4 normalized unsigned bytes.
+     * - TexCoord: 2 floats, the global planet texture coordinates don't fit 
+     *   in less.
+     */
+    protected Mesh createPackedMesh(PatchScratch scratch, float heightScale) {
+        float[] position = scratch.position;
+        float[] normal = scratch.normal;
+        float[] height = scratch.height;
+        int[] edgeVertexIndex = this.topology.getEdgeVertexIndex();
+        int paddedSide = this.quads + 2 * this.padding + 1;
+        
+        // Skirt 1/10th the height scale, as in the float layout
+        Vector3f skirtDirection = scratch.vector.set(this.center).normalizeLocal();
+        float skirtDepth = (heightScale / 10) + 0.01f;
+        float skirtX = skirtDirection.x * skirtDepth;
+        float skirtY = skirtDirection.y * skirtDepth;
+        float skirtZ = skirtDirection.z * skirtDepth;
         
-        return mesh; 
+        // Quantize against the largest coordinate, skirt included
+        float scale = 0f;
+        for (int y = 0; y < (this.quads + 1); y++) {
+            for (int x = 0; x < (this.quads + 1); x++) {
+                int vi = paddedSide * (y + this.padding) + (x + this.padding);
+                scale = Math.max(scale, Math.abs(position[vi * 3]));
+                scale = Math.max(scale, Math.abs(position[vi * 3 + 1]));
+                scale = Math.max(scale, Math.abs(position[vi * 3 + 2]));
+            }
+        }
+        this.packedScale = Math.max(scale + skirtDepth, 1e-6f);
+        float quantize = Short.MAX_VALUE / this.packedScale;
+        
+        ShortBuffer vertexBuffer = createShortBuffer(4 * totalVertexCount);
+        ByteBuffer normalBuffer = createByteBuffer(4 * totalVertexCount);
+        ByteBuffer colorBuffer = createByteBuffer(4 * totalVertexCount);
+        FloatBuffer textureBuffer = createFloatBuffer(2 * totalVertexCount);
+        
+        for (int y = 0; y < (this.quads + 1); y++)
+        {
+            float jy = (float)y / this.quads;
+            byte edgeY = (byte)(y == 0 ? 0 : (y == this.quads ? 127 : 64));
+            for (int x = 0; x < (this.quads + 1); x++)
+            {
+                int vi = paddedSide * (y + this.padding) + (x + this.padding);
+                int ni = (this.quads + 1) * y + x;
+                
+                // Vertex pos
+                vertexBuffer.put((short)Math.round(position[vi * 3] * quantize));
+                vertexBuffer.put((short)Math.round(position[vi * 3 + 1] * quantize));
+                vertexBuffer.put((short)Math.round(position[vi * 3 + 2] * quantize));
+                vertexBuffer.put(Short.MAX_VALUE);
+                // Vertex normal and edge flags
+                putOctahedralNormal(normalBuffer, normal[ni * 3], normal[ni * 3 + 1], normal[ni * 3 + 2]);
+                normalBuffer.put((byte)(x == 0 ? 0 : (x == this.quads ? 127 : 64)));
+                normalBuffer.put(edgeY);
+                // Vertex color
+                float[] color = HEIGHT_COLORS[getHeightColorIndex(height[vi], heightScale)];
+                for (int c = 0; c < 4; c++)
+                    colorBuffer.put((byte)Math.round(color[c] * 255f));
+                // Texture coordinates (this is global planet texture coordinates)
+                float jx = (float)x / this.quads;
+                textureBuffer.put((1 - jx) * this.texXMin + jx * this.texXMax);
+                textureBuffer.put((1 - jy) * this.texYMin + jy * this.texYMax);
+            }
+        }
+        
+        // Skirt vertices copy everything but the position from their edge vertex
+        for (int i = 0; i < skirtVertexCount; i++) {
+            int e = edgeVertexIndex[i];
+            int vi = paddedSide * (e / (this.quads + 1) + this.padding) + (e % (this.quads + 1) + this.padding);
+            vertexBuffer.put((short)Math.round((position[vi * 3] - skirtX) * quantize));
+            vertexBuffer.put((short)Math.round((position[vi * 3 + 1] - skirtY) * quantize));
+            vertexBuffer.put((short)Math.round((position[vi * 3 + 2] - skirtZ) * quantize));
+            vertexBuffer.put(Short.MAX_VALUE);
+            
+            for (int c = 0; c < 4; c++) {
+                normalBuffer.put(normalBuffer.get(4 * e + c));
+                colorBuffer.put(colorBuffer.get(4 * e + c));
+            }
+            textureBuffer.put(textureBuffer.get(2 * e));
+            textureBuffer.put(textureBuffer.get(2 * e + 1));
+        }
+        
+        Mesh packedMesh = new Mesh();
+        packedMesh.setBuffer(createVertexBuffer(Type.Position, 4, Format.Short, true, vertexBuffer));
+        packedMesh.setBuffer(createVertexBuffer(Type.Normal, 4, Format.Byte, true, normalBuffer));
+        packedMesh.setBuffer(createVertexBuffer(Type.TexCoord, 2, Format.Float, false, textureBuffer));
+        packedMesh.setBuffer(createVertexBuffer(Type.Color, 4, Format.UnsignedByte, true, colorBuffer));
+        packedMesh.setBuffer(this.topology.getIndexBuffer(this.skirting));
+        
+        // Mesh.updateBound only reads float positions, the quantized 
+        // coordinates all lie within [-1, 1]
+        packedMesh.setBound(new BoundingBox(new Vector3f(0, 0, 0), 1f, 1f, 1f));
+        
+        return packedMesh;
+    }
+    
+    private static VertexBuffer createVertexBuffer(Type type, int components, 
+            Format format, boolean normalized, Buffer data) {
+        VertexBuffer buffer = new VertexBuffer(type);
+        buffer.setupData(Usage.Static, components, format, data);
+        buffer.setNormalized(normalized);
+        return buffer;
+    }
+    
+    /**
+     * Returns the smallest unit sphere distance between samples a cube 
+     * step apart anywhere on a face. The cube to sphere mapping packs 
+     * samples closest at the face corners, sqrt(2)/3 of the step there, so
+     * the data source never leaves out detail the grid could show.
+     */
+    protected static float getSampleSpacing(float cubeStep) {
+        return cubeStep * CORNER_SPACING;
+    }
+    
+    /**
+     * Octahedral encoding of a unit normal into two normalized bytes, decoded
+     * by the <code>PACKED_VERTICES</code> variant of Terrain.vert.
+     */
+    protected static void putOctahedralNormal(ByteBuffer buffer, float nx, float ny, float nz) {
+        float l1 = Math.abs(nx) + Math.abs(ny) + Math.abs(nz);
+        float u = nx / l1;
+        float v = ny / l1;
+        if (nz < 0) {
+            // fold the lower hemisphere over the diagonals
+            float fu = (1f - Math.abs(v)) * (u >= 0 ? 1f : -1f);
+            float fv = (1f - Math.abs(u)) * (v >= 0 ? 1f : -1f);
+            u = fu;
+            v = fv;
+        }
+        buffer.put((byte)Math.round(u * 127f));
+        buffer.put((byte)Math.round(v * 127f));
     }
         
     public boolean isPrepared() {
@@ -213,27 +427,124 @@ public class Patch {
         return this.aabb;
     }
     
+    /**
+     * Error of the patch against a patch of twice the resolution, see 
+     * <code>computeGeometricError</code>.
+     */
+    public float getGeometricError() {
+        return this.geometricError;
+    }
+    
+    /**
+     * Scale of the quantized positions of a packed mesh, to set as the local
+     * scale of its geometry. 1 for the float layout.
+     */
+    public float getPackedScale() {
+        return this.packedScale;
+    }
+    
+    public boolean isPackedVertices() {
+        return this.packedVertices;
+    }
+    
+    /**
+     * Memory held by the patch, its vertex buffers and retained samples.
+     */
+    public long getByteSize() {
+        return this.byteSize;
+    }
+    
+    /**
+     * Builds the mesh in the packed vertex layout, see 
+     * <code>createPackedMesh</code>. Needs a material with the 
+     * <code>PackedVertices</code> parameter of Terrain.j3md. Set before 
+     * <code>prepare</code>.
+     */
+    public void setPackedVertices(boolean packedVertices) {
+        this.packedVertices = packedVertices;
+    }
+    
+    /**
+     * Build normals from the analytic height gradient instead of the
+     * neighbouring vertices. Needs a <code>GradientHeightDataSource</code>,
+     * otherwise the padded neighbour normals are used. Set before 
+     * <code>prepare</code>.
+     */
+    public void setAnalyticNormals(boolean analyticNormals) {
+        this.analyticNormals = analyticNormals;
+    }
+    
+    /**
+     * Shares border samples with the neighbouring patches through 
+     * <code>exchange</code>, or samples every vertex if null. Set before
+     * <code>prepare</code>.
+     */
+    public void setSampleExchange(EdgeSampleExchange exchange) {
+        this.sampleExchange = exchange;
+    }
+    
+    /**
+     * Keeps the samples of the patch after <code>prepare</code>, so the 
+     * patches of its children can inherit them. Only full detail samples 
+     * are kept, coarser ones lack detail the children add. Set before 
+     * <code>prepare</code>.
+     */
+    public void setRetainSamples(boolean retainSamples) {
+        this.retainSamples = retainSamples;
+    }
+    
+    /**
+     * Every second vertex of a child patch is a vertex of the parent. If the
+     * parent retained its samples at full detail, the child takes those 
+     * heights and only samples the vertices in between. Set before 
+     * <code>prepare</code>, the reference is dropped by it.
+     */
+    public void setParentPatch(Patch parentPatch) {
+        this.parentPatch = parentPatch;
+    }
+    
+    /**
+     * Borrows the vertex buffers from <code>pool</code> instead of allocating
+     * them, <code>release</code> gives them back. Set before 
+     * <code>prepare</code>.
+     */
+    public void setBufferPool(DirectBufferPool pool) {
+        this.bufferPool = pool;
+    }
+    
+    /**
+     * Returns the vertex buffers to the pool. The mesh is dropped and must
+     * not be rendered anymore, so detach its geometry first.
+     */
+    public void release() {
+        if (this.pooledBuffers != null) {
+            for (ByteBuffer buffer : this.pooledBuffers)
+                this.bufferPool.release(buffer);
+            this.pooledBuffers = null;
+        }
+        this.mesh = null;
+        this.byteSize = 0;
+    }
+    
     public void setSkirting(boolean skirting) {
         if (this.skirting != skirting) {
             this.skirting = skirting;
-            IntBuffer indexBuffer = generateIndices();
             mesh.clearBuffer(Type.Index);
-            mesh.setBuffer(Type.Index, 3, indexBuffer);
+            mesh.setBuffer(this.topology.getIndexBuffer(skirting));
         }
     }
     
-    protected void generateVertexPositions(Vector3f[] vertexPosition, float[] vertexColor) {
+    /**
+     * Sets up the mapping of the grid onto the cube face of the patch, see
+     * <code>gridToCube</code>.
+     */
+    protected void prepareFaceMapping() {
         
        // Use "texture coordinates"
-        // _xPos is where U axis changes
-        float xPos = 0;
-        // _yPos is where V axis changes
-        float yPos = 0;
-        // _zPos is where the normal would be
-        float zPos = 0;
-
-        Vector2f startPos = new Vector2f();
-        Vector2f endPos = new Vector2f();
+        float startX = 0;
+        float startY = 0;
+        float endX = 0;
+        float endY = 0;
 
         int a = 0;
         int b = 0;
@@ -246,10 +557,10 @@ public class Patch {
             // U coordinate lies in Y axis
             // X axis is normal
             side = 0;
-            startPos.x = this.min.z;
-            startPos.y = this.min.y;
-            endPos.x = this.max.z;
-            endPos.y = this.max.y;
+            startX = this.min.z;
+            startY = this.min.y;
+            endX = this.max.z;
+            endY = this.max.y;
             a = -1;
             b = -1;
             c = 1;
@@ -257,247 +568,653 @@ public class Patch {
         if (this.min.x == -1.0 && this.max.x == -1.0) {
             // Patch on left side
             side = 1;
-            startPos.x = this.min.z;
-            startPos.y = this.min.y;
-            endPos.x = this.max.z;
-            endPos.y = this.max.y;
+            startX = this.min.z;
+            startY = this.min.y;
+            endX = this.max.z;
+            endY = this.max.y;
             a = 1;
             b = -1;
             c = -1;
         } else if (this.min.y == 1.0 && this.max.y == 1.0) {
             // Patch on top side
             side = 2;
-            startPos.x = this.min.x;
-            startPos.y = this.min.z;
-            endPos.x = this.max.x;
-            endPos.y = this.max.z;
+            startX = this.min.x;
+            startY = this.min.z;
+            endX = this.max.x;
+            endY = this.max.z;
             a = 1;
             b = 1;
             c = 1;
         } else if (this.min.y == -1.0 && this.max.y == -1.0) {
             // Patch on bottom side
             side = 3;
-            startPos.x = this.min.x;
-            startPos.y = this.min.z;
-            endPos.x = this.max.x;
-            endPos.y = this.max.z;
+            startX = this.min.x;
+            startY = this.min.z;
+            endX = this.max.x;
+            endY = this.max.z;
             a = 1;
             b = -1;
             c = -1;
         } else if (this.min.z == 1.0 && this.max.z == 1.0) {
             // Patch on front side
             side = 4;
-            startPos.x = this.min.x;
-            startPos.y = this.min.y;
-            endPos.x = this.max.x;
-            endPos.y = this.max.y;
+            startX = this.min.x;
+            startY = this.min.y;
+            endX = this.max.x;
+            endY = this.max.y;
             a = 1;
             b = -1;
             c = 1;
         } else if (this.min.z == -1.0 && this.max.z == -1.0) {
             // Patch on back side
             side = 5;
-            startPos.x = this.min.x;
-            startPos.y = this.min.y;
-            endPos.x = this.max.x;
-            endPos.y = this.max.y;
+            startX = this.min.x;
+            startY = this.min.y;
+            endX = this.max.x;
+            endY = this.max.y;
             a = -1;
             b = -1;
             c = -1;
         }
 
+        this.side = side;
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+        this.sideZ = c;
+    }
+    
+    protected void generateVertexPositions(PatchScratch scratch) {
+        
+        prepareFaceMapping();
+
         // Calculate unit sphere positions
-        Vector3f[] unitSpherePos = new Vector3f[(this.quads + 2*this.padding + 1) * (this.quads + 2*this.padding + 1)];
-        float[] heightData = new float[(this.quads + 2*this.padding + 1) * (this.quads + 2*this.padding + 1)];
-        Vector3f pos = new Vector3f();
+        int count = (this.quads + 2*this.padding + 1) * (this.quads + 2*this.padding + 1);
+        float[] unitSphereX = scratch.unitSphereX;
+        float[] unitSphereY = scratch.unitSphereY;
+        float[] unitSphereZ = scratch.unitSphereZ;
+        float[] heightData = scratch.height;
+        Vector3f pos = scratch.vector;
         for (int y = 0-this.padding; y <= (this.quads + this.padding); y++) {
             for (int x = 0-this.padding; x <= (this.quads + this.padding); x++) {
                 int index = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding);
 
-                xPos = (startPos.x + (endPos.x - startPos.x) * (((float) x)/this.quads));
-                yPos = (startPos.y + (endPos.y - startPos.y) * (((float) y)/this.quads));
-                zPos = c;
-                
-                switch (side) {
-                    case 0: pos.x = zPos; pos.y = yPos; pos.z = xPos; break;
-                    case 1: pos.x = zPos; pos.y = yPos; pos.z = xPos; break;
-                    case 2: pos.x = xPos; pos.y = zPos; pos.z = yPos; break;
-                    case 3: pos.x = xPos; pos.y = zPos; pos.z = yPos; break;
-                    case 4: pos.x = xPos; pos.y = yPos; pos.z = zPos; break;
-                    case 5: pos.x = xPos; pos.y = yPos; pos.z = zPos; break;
-                }
+                gridToCube(x, y, pos);
               
                 // normalize the position making it curved
-                unitSpherePos[index] = pos.normalize();
-                
-                // get height data for given index
-                heightData[index] = this.dataSource.getValue(unitSpherePos[index]);                    
+                pos.normalizeLocal();
+                unitSphereX[index] = pos.x;
+                unitSphereY[index] = pos.y;
+                unitSphereZ[index] = pos.z;
+            }
+        }
+        
+        // the spacing depends on the depth alone, so neighbours of the same
+        // depth leave out the same detail and their shared edges match
+        float sampleSpacing = getSampleSpacing(Math.abs(this.endX - this.startX) / this.quads);
+        
+        // take the border strips neighbours of the same depth already 
+        // sampled, then get the rest of the grid in one batch, in row order
+        int sharedCount = 0;
+        if (this.parentPatch != null || this.sampleExchange != null)
+            Arrays.fill(scratch.shared, 0, count, false);
+        if (this.parentPatch != null) {
+            sharedCount += takeParentSamples(scratch);
+            this.parentPatch = null;
+        }
+        if (this.sampleExchange != null)
+            sharedCount += takeEdgeSamples(scratch, sampleSpacing);
+        
+        float[] gradientX = scratch.gradientX;
+        float[] gradientY = scratch.gradientY;
+        float[] gradientZ = scratch.gradientZ;
+        if (sharedCount == 0) {
+            sampleHeights(unitSphereX, unitSphereY, unitSphereZ, heightData, gradientX, gradientY, gradientZ, count, sampleSpacing);
+        } else {
+            int missing = 0;
+            for (int index = 0; index < count; index++) {
+                if (!scratch.shared[index]) {
+                    scratch.missingIndex[missing] = index;
+                    scratch.missingX[missing] = unitSphereX[index];
+                    scratch.missingY[missing] = unitSphereY[index];
+                    scratch.missingZ[missing] = unitSphereZ[index];
+                    missing++;
+                }
+            }
+            sampleHeights(scratch.missingX, scratch.missingY, scratch.missingZ, scratch.missingHeight, 
+                    scratch.missingGradientX, scratch.missingGradientY, scratch.missingGradientZ, missing, sampleSpacing);
+            for (int m = 0; m < missing; m++) {
+                int index = scratch.missingIndex[m];
+                heightData[index] = scratch.missingHeight[m];
+                if (this.analyticNormals) {
+                    gradientX[index] = scratch.missingGradientX[m];
+                    gradientY[index] = scratch.missingGradientY[m];
+                    gradientZ[index] = scratch.missingGradientZ[m];
+                }
+            }
+        }
+        
+        if (this.sampleExchange != null)
+            putEdgeSamples(scratch, sampleSpacing);
+        
+        if (this.retainSamples && sampleSpacing <= this.dataSource.getFullDetailSpacing()) {
+            this.sampleSpacing = sampleSpacing;
+            this.sampleHeightScale = this.dataSource.getHeightScale();
+            this.sampleX = Arrays.copyOf(unitSphereX, count);
+            this.sampleY = Arrays.copyOf(unitSphereY, count);
+            this.sampleZ = Arrays.copyOf(unitSphereZ, count);
+            this.sampleHeight = Arrays.copyOf(heightData, count);
+            this.byteSize += 4L * 4 * count;
+            if (this.analyticNormals) {
+                this.sampleGradientX = Arrays.copyOf(gradientX, count);
+                this.sampleGradientY = Arrays.copyOf(gradientY, count);
+                this.sampleGradientZ = Arrays.copyOf(gradientZ, count);
+                this.byteSize += 3L * 4 * count;
+            }
+        }
+        
+        if (this.analyticNormals) {
+            float[] vertexNormal = scratch.normal;
+            
+            // Normal of the displaced sphere: the unit position tilted by the 
+            // tangential part of the height gradient over the radius
+            for (int index = 0; index < count; index++) {
+                float radial = gradientX[index] * unitSphereX[index] + gradientY[index] * unitSphereY[index] + gradientZ[index] * unitSphereZ[index];
+                float radius = baseRadius + heightData[index];
+                Vector3f n = scratch.vector.set(
+                        unitSphereX[index] - (gradientX[index] - radial * unitSphereX[index]) / radius,
+                        unitSphereY[index] - (gradientY[index] - radial * unitSphereY[index]) / radius,
+                        unitSphereZ[index] - (gradientZ[index] - radial * unitSphereZ[index]) / radius).normalizeLocal();
+                vertexNormal[index * 3] = n.x;
+                vertexNormal[index * 3 + 1] = n.y;
+                vertexNormal[index * 3 + 2] = n.z;
             }
         }
               
         // Now calculate vertex positions (with padding) in planet space
-        Vector3f minBounds = new Vector3f(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
-        Vector3f maxBounds = new Vector3f(-Integer.MAX_VALUE, -Integer.MAX_VALUE, -Integer.MAX_VALUE);
-        for (int y = 0; y < (this.quads + 2*this.padding + 1); y++) {
-            for (int x = 0; x < (this.quads + 2*this.padding + 1); x++) {
-                
-                int index = (this.quads + 2*this.padding + 1) * y + x;
- 
-                // vertex position with height added
-                vertexPosition[index] = unitSpherePos[index].mult(baseRadius + heightData[index]);
-                
-                // vertex color
-                ColorRGBA color = getHeightColor(heightData[index], this.dataSource.getHeightScale());
-                vertexColor[index * 4   ] = color.r;
-                vertexColor[index * 4 +1] = color.g;
-                vertexColor[index * 4 +2] = color.b;
-                vertexColor[index * 4 +3] = color.a;
+        float[] vertexPosition = scratch.position;
+        float minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        float maxX = -Integer.MAX_VALUE, maxY = -Integer.MAX_VALUE, maxZ = -Integer.MAX_VALUE;
+        for (int index = 0; index < count; index++) {
+            // vertex position with height added
+            float radius = baseRadius + heightData[index];
+            float px = unitSphereX[index] * radius;
+            float py = unitSphereY[index] * radius;
+            float pz = unitSphereZ[index] * radius;
+            vertexPosition[index * 3] = px;
+            vertexPosition[index * 3 + 1] = py;
+            vertexPosition[index * 3 + 2] = pz;
 
-                minBounds.x = Math.min(minBounds.x, vertexPosition[index].x);
-                minBounds.y = Math.min(minBounds.y, vertexPosition[index].y);
-                minBounds.z = Math.min(minBounds.z, vertexPosition[index].z);
-                maxBounds.x = Math.max(maxBounds.x, vertexPosition[index].x);
-                maxBounds.y = Math.max(maxBounds.y, vertexPosition[index].y);
-                maxBounds.z = Math.max(maxBounds.z, vertexPosition[index].z);
-                    
-            }
+            minX = Math.min(minX, px);
+            minY = Math.min(minY, py);
+            minZ = Math.min(minZ, pz);
+            maxX = Math.max(maxX, px);
+            maxY = Math.max(maxY, py);
+            maxZ = Math.max(maxZ, pz);
         }
         
         // Transform vertex positions to object space (i.e. centered around origin)
-        this.aabb = new BoundingBox(minBounds, maxBounds);
+        this.aabb = new BoundingBox(new Vector3f(minX, minY, minZ), new Vector3f(maxX, maxY, maxZ));
         this.center = aabb.getCenter();
-        minBounds = minBounds.subtract(this.center);
-        maxBounds = maxBounds.subtract(this.center);
-        for (int y = 0; y < (this.quads + 2*this.padding + 1); y++)
-        {
-                for (int x = 0; x < (this.quads + 2*this.padding + 1); x++)
-                {
-                        int index = (this.quads + 2*this.padding + 1) * y + x;
-                        vertexPosition[index] = vertexPosition[index].subtract(center);
+        for (int index = 0; index < count; index++) {
+            vertexPosition[index * 3] -= center.x;
+            vertexPosition[index * 3 + 1] -= center.y;
+            vertexPosition[index * 3 + 2] -= center.z;
+        }
+        
+        this.geometricError = computeGeometricError(vertexPosition);
+    }
+    
+    /**
+     * Farthest distance of a vertex from the midpoint of its two neighbours
+     * in a row or column, which is the error of leaving out every other 
+     * vertex. Edge vertices count only where the padding gives them both
+     * neighbours.
+     */
+    protected float computeGeometricError(float[] position) {
+        int paddedSide = this.quads + 2 * this.padding + 1;
+        int first = this.padding > 0 ? 0 : 1;
+        int last = this.padding > 0 ? this.quads : this.quads - 1;
+        float error = 0f;
+        for (int y = 0; y < (this.quads + 1); y++) {
+            for (int x = 0; x < (this.quads + 1); x++) {
+                int index = paddedSide * (y + this.padding) + (x + this.padding);
+                if (x >= first && x <= last)
+                    error = Math.max(error, getDeviation(position, index, index - 1, index + 1));
+                if (y >= first && y <= last)
+                    error = Math.max(error, getDeviation(position, index, index - paddedSide, index + paddedSide));
+            }
+        }
+        return error;
+    }
+    
+    private static float getDeviation(float[] position, int index, int a, int b) {
+        float dx = position[index * 3] - (position[a * 3] + position[b * 3]) * 0.5f;
+        float dy = position[index * 3 + 1] - (position[a * 3 + 1] + position[b * 3 + 1]) * 0.5f;
+        float dz = position[index * 3 + 2] - (position[a * 3 + 2] + position[b * 3 + 2]) * 0.5f;
+        return (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+    
+    private void sampleHeights(float[] x, float[] y, float[] z, float[] height, 
+            float[] gradientX, float[] gradientY, float[] gradientZ, int count, float spacing) {
+        if (this.analyticNormals)
+            ((GradientHeightDataSource)this.dataSource).getValuesAndGradients(
+                    x, y, z, height, gradientX, gradientY, gradientZ, count, spacing);
+        else
+            this.dataSource.getValues(x, y, z, height, count, spacing);
+    }
+    
+    /// Cube position of grid vertex (x, y), in the face mapping of the patch
+    protected void gridToCube(int x, int y, Vector3f store) {
+        // _xPos is where U axis changes
+        float xPos = (this.startX + (this.endX - this.startX) * (((float) x)/this.quads));
+        // _yPos is where V axis changes
+        float yPos = (this.startY + (this.endY - this.startY) * (((float) y)/this.quads));
+        // _zPos is where the normal would be
+        float zPos = this.sideZ;
+        
+        switch (this.side) {
+            case 0: store.x = zPos; store.y = yPos; store.z = xPos; break;
+            case 1: store.x = zPos; store.y = yPos; store.z = xPos; break;
+            case 2: store.x = xPos; store.y = zPos; store.z = yPos; break;
+            case 3: store.x = xPos; store.y = zPos; store.z = yPos; break;
+            case 4: store.x = xPos; store.y = yPos; store.z = zPos; break;
+            case 5: store.x = xPos; store.y = yPos; store.z = zPos; break;
+        }
+    }
+    
+    // Edges are 0: y = 0, 1: x = quads, 2: y = quads, 3: x = 0. Edges 0 and 
+    // 2 run along x, 1 and 3 along y.
+    
+    private void getEdgeEnds(int edge, Vector3f a, Vector3f b) {
+        int line = (edge == 0 || edge == 3) ? 0 : this.quads;
+        if (edge % 2 == 0) {
+            gridToCube(0, line, a);
+            gridToCube(this.quads, line, b);
+        } else {
+            gridToCube(line, 0, a);
+            gridToCube(line, this.quads, b);
+        }
+    }
+    
+    /// Rows shared across the edge on each side: the padding, but none 
+    /// where the edge is on the border of the cube face
+    private int getEdgePadding(int edge) {
+        float line;
+        switch (edge) {
+            case 0: line = this.startY; break;
+            case 1: line = this.endX; break;
+            case 2: line = this.endY; break;
+            default: line = this.startX; break;
+        }
+        return Math.abs(line) == 1f ? 0 : this.padding;
+    }
+    
+    /// Padded grid index of a sample in the strip around an edge, with rows
+    /// going from the negative to the positive side of the cube axis
+    private int getEdgeSampleIndex(int edge, int row, int along) {
+        boolean alongX = (edge % 2 == 0);
+        int line = (edge == 0 || edge == 3) ? 0 : this.quads;
+        int direction = alongX ? (this.endY > this.startY ? 1 : -1) : (this.endX > this.startX ? 1 : -1);
+        int across = line + row * direction;
+        int x = alongX ? along : across;
+        int y = alongX ? across : along;
+        return (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding);
+    }
+    
+    private int takeParentSamples(PatchScratch scratch) {
+        Patch parent = this.parentPatch;
+        
+        // Only full detail heights are the same at the parent and the child
+        // spacing, below it the child adds detail the parent left out
+        if (parent.sampleHeight == null || parent.quads != this.quads || parent.side != this.side ||
+                parent.padding != this.padding ||
+                parent.sampleHeightScale != this.dataSource.getHeightScale() ||
+                parent.sampleSpacing > this.dataSource.getFullDetailSpacing() ||
+                (this.analyticNormals && parent.sampleGradientX == null))
+            return 0;
+        
+        // Parent grid vertex of child vertex (0, 0), and the parent grid step
+        // per two child steps
+        float parentExtentX = parent.endX - parent.startX;
+        float parentExtentY = parent.endY - parent.startY;
+        int originX = Math.round((this.startX - parent.startX) / parentExtentX * this.quads);
+        int originY = Math.round((this.startY - parent.startY) / parentExtentY * this.quads);
+        int directionX = Math.round(2f * (this.endX - this.startX) / parentExtentX);
+        int directionY = Math.round(2f * (this.endY - this.startY) / parentExtentY);
+        if (Math.abs(directionX) != 1 || Math.abs(directionY) != 1)
+            return 0;
+        
+        int sharedCount = 0;
+        int size = this.quads + 2*this.padding + 1;
+        for (int y = -this.padding; y <= this.quads + this.padding; y += 2) {
+            int parentY = originY + directionY * (y / 2);
+            if (parentY < -this.padding || parentY > this.quads + this.padding)
+                continue;
+            for (int x = -this.padding; x <= this.quads + this.padding; x += 2) {
+                int parentX = originX + directionX * (x / 2);
+                if (parentX < -this.padding || parentX > this.quads + this.padding)
+                    continue;
+                
+                int index = size * (y + this.padding) + (x + this.padding);
+                int parentIndex = size * (parentY + this.padding) + (parentX + this.padding);
+                scratch.unitSphereX[index] = parent.sampleX[parentIndex];
+                scratch.unitSphereY[index] = parent.sampleY[parentIndex];
+                scratch.unitSphereZ[index] = parent.sampleZ[parentIndex];
+                scratch.height[index] = parent.sampleHeight[parentIndex];
+                if (this.analyticNormals) {
+                    scratch.gradientX[index] = parent.sampleGradientX[parentIndex];
+                    scratch.gradientY[index] = parent.sampleGradientY[parentIndex];
+                    scratch.gradientZ[index] = parent.sampleGradientZ[parentIndex];
+                }
+                if (!scratch.shared[index]) {
+                    scratch.shared[index] = true;
+                    sharedCount++;
                 }
+            }
         }
         
+        return sharedCount;
     }
     
-    protected void generateVertexNormals(Vector3f[] vertexNormal, Vector2f[] textureCoordinate, Vector3f[] vertexPosition) {
+    private int takeEdgeSamples(PatchScratch scratch, float spacing) {
+        int sharedCount = 0;
+        float heightScale = this.dataSource.getHeightScale();
+        
+        for (int edge = 0; edge < 4; edge++) {
+            scratch.edgeTaken[edge] = false;
+            scratch.edgeSamples[edge] = null;
+            getEdgeEnds(edge, scratch.vector, scratch.other);
+            EdgeSampleExchange.Samples samples = this.sampleExchange.get(scratch.vector, scratch.other, spacing);
+            if (samples == null || samples.quads != this.quads || samples.heightScale != heightScale ||
+                    (this.analyticNormals && samples.gradientX == null))
+                continue;
+            scratch.edgeTaken[edge] = true;
+            scratch.edgeSamples[edge] = samples;
+            scratch.edgeLowerEnd[edge] = EdgeSampleExchange.isLowerEnd(scratch.vector, scratch.other);
+        }
+        
+        // The strips overlap near the corners, where the padding rows of one
+        // edge cross the middle row of the next. Copy the padding rows first
+        // so the rows on the edges themselves win.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int edge = 0; edge < 4; edge++) {
+                EdgeSampleExchange.Samples samples = scratch.edgeSamples[edge];
+                if (samples == null)
+                    continue;
+                
+                int rows = Math.min(samples.padding, getEdgePadding(edge));
+                for (int row = -rows; row <= rows; row++) {
+                    if ((row == 0) != (pass == 1))
+                        continue;
+                    for (int along = 0; along <= this.quads; along++) {
+                        int index = getEdgeSampleIndex(edge, row, along);
+                        int sample = samples.getIndex(row, scratch.edgeLowerEnd[edge] ? along : this.quads - along);
+                        scratch.unitSphereX[index] = samples.x[sample];
+                        scratch.unitSphereY[index] = samples.y[sample];
+                        scratch.unitSphereZ[index] = samples.z[sample];
+                        scratch.height[index] = samples.height[sample];
+                        if (this.analyticNormals) {
+                            scratch.gradientX[index] = samples.gradientX[sample];
+                            scratch.gradientY[index] = samples.gradientY[sample];
+                            scratch.gradientZ[index] = samples.gradientZ[sample];
+                        }
+                        if (!scratch.shared[index]) {
+                            scratch.shared[index] = true;
+                            sharedCount++;
+                        }
+                    }
+                }
+                if (pass == 1)
+                    scratch.edgeSamples[edge] = null;
+            }
+        }
+        
+        // the corners go last, they may have come with two different edges
+        for (int corner = 0; corner < 4; corner++) {
+            scratch.cornerTaken[corner] = false;
+            int x = (corner == 1 || corner == 2) ? this.quads : 0;
+            int y = corner >= 2 ? this.quads : 0;
+            gridToCube(x, y, scratch.vector);
+            EdgeSampleExchange.Samples samples = this.sampleExchange.getCorner(scratch.vector, spacing);
+            if (samples == null || samples.heightScale != heightScale ||
+                    (this.analyticNormals && samples.gradientX == null))
+                continue;
+            
+            int index = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding);
+            scratch.unitSphereX[index] = samples.x[0];
+            scratch.unitSphereY[index] = samples.y[0];
+            scratch.unitSphereZ[index] = samples.z[0];
+            scratch.height[index] = samples.height[0];
+            if (this.analyticNormals) {
+                scratch.gradientX[index] = samples.gradientX[0];
+                scratch.gradientY[index] = samples.gradientY[0];
+                scratch.gradientZ[index] = samples.gradientZ[0];
+            }
+            if (!scratch.shared[index]) {
+                scratch.shared[index] = true;
+                sharedCount++;
+            }
+            scratch.cornerTaken[corner] = true;
+        }
+        
+        return sharedCount;
+    }
+    
+    private void putEdgeSamples(PatchScratch scratch, float spacing) {
+        float heightScale = this.dataSource.getHeightScale();
+        
+        for (int edge = 0; edge < 4; edge++) {
+            if (scratch.edgeTaken[edge])
+                continue;
+            
+            getEdgeEnds(edge, scratch.vector, scratch.other);
+            boolean lowerEnd = EdgeSampleExchange.isLowerEnd(scratch.vector, scratch.other);
+            int rows = getEdgePadding(edge);
+            EdgeSampleExchange.Samples samples = new EdgeSampleExchange.Samples(this.quads, rows, heightScale, this.analyticNormals);
+            for (int row = -rows; row <= rows; row++) {
+                for (int along = 0; along <= this.quads; along++) {
+                    int index = getEdgeSampleIndex(edge, row, along);
+                    int sample = samples.getIndex(row, lowerEnd ? along : this.quads - along);
+                    samples.x[sample] = scratch.unitSphereX[index];
+                    samples.y[sample] = scratch.unitSphereY[index];
+                    samples.z[sample] = scratch.unitSphereZ[index];
+                    samples.height[sample] = scratch.height[index];
+                    if (this.analyticNormals) {
+                        samples.gradientX[sample] = scratch.gradientX[index];
+                        samples.gradientY[sample] = scratch.gradientY[index];
+                        samples.gradientZ[sample] = scratch.gradientZ[index];
+                    }
+                }
+            }
+            this.sampleExchange.put(scratch.vector, scratch.other, spacing, samples);
+        }
+        
+        for (int corner = 0; corner < 4; corner++) {
+            if (scratch.cornerTaken[corner])
+                continue;
+            
+            int x = (corner == 1 || corner == 2) ? this.quads : 0;
+            int y = corner >= 2 ? this.quads : 0;
+            int index = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding);
+            EdgeSampleExchange.Samples samples = new EdgeSampleExchange.Samples(0, 0, heightScale, this.analyticNormals);
+            samples.x[0] = scratch.unitSphereX[index];
+            samples.y[0] = scratch.unitSphereY[index];
+            samples.z[0] = scratch.unitSphereZ[index];
+            samples.height[0] = scratch.height[index];
+            if (this.analyticNormals) {
+                samples.gradientX[0] = scratch.gradientX[index];
+                samples.gradientY[0] = scratch.gradientY[index];
+                samples.gradientZ[0] = scratch.gradientZ[index];
+            }
+            gridToCube(x, y, scratch.vector);
+            this.sampleExchange.putCorner(scratch.vector, spacing, samples);
+        }
+    }
+    
+    protected void generateVertexNormals(PatchScratch scratch) {
        
-        // Calculate vertex normals
+        // Calculate vertex normals, unless they came with the heights
+        if (this.analyticNormals)
+            return;
+        
+        float[] vertexPosition = scratch.position;
+        float[] vertexNormal = scratch.normal;
+        float[] edge = scratch.edge;
+        int paddedSide = this.quads + 2*this.padding + 1;
         for (int y = 0; y < (this.quads + 1); y++)
         {
             for (int x = 0; x < (this.quads + 1); x++)
             {
                 int index = (this.quads + 1) * y + x;
 
-                // 6-connected, with triangle-area correction
-                int pIndex = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding);
-                int pNextXIndex = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding + 1);
-                int pNextYIndex = (this.quads + 2*this.padding + 1) * (y + this.padding + 1) + (x + this.padding);
-                int pPrevXIndex = (this.quads + 2*this.padding + 1) * (y + this.padding) + (x + this.padding - 1);
-                int pPrevYIndex = (this.quads + 2*this.padding + 1) * (y + this.padding - 1) + (x + this.padding);
-                int pNextXPrevYIndex = (this.quads + 2*this.padding + 1) * (y + this.padding - 1) + (x + this.padding + 1);
-                int pPrevXNextYIndex = (this.quads + 2*this.padding + 1) * (y + this.padding + 1) + (x + this.padding - 1);
-
-                Vector3f thisVertex = vertexPosition[pIndex];
-                Vector3f nextXVertex = vertexPosition[pNextXIndex];
-                Vector3f nextYVertex = vertexPosition[pNextYIndex];
-                Vector3f prevXVertex = vertexPosition[pPrevXIndex];
-                Vector3f prevYVertex = vertexPosition[pPrevYIndex];
-                Vector3f nextXPrevYVertex = vertexPosition[pNextXPrevYIndex];
-                Vector3f prevXNextYVertex = vertexPosition[pPrevXNextYIndex];
-
-                Vector3f n1 = nextXVertex.subtract(thisVertex).cross(nextXPrevYVertex.subtract(thisVertex));
-                Vector3f n2 = nextXPrevYVertex.subtract(thisVertex).cross(prevYVertex.subtract(thisVertex));
-                Vector3f n3 = prevYVertex.subtract(thisVertex).cross(prevXVertex.subtract(thisVertex));
-                Vector3f n4 = prevXVertex.subtract(thisVertex).cross(prevXNextYVertex.subtract(thisVertex));
-                Vector3f n5 = prevXNextYVertex.subtract(thisVertex).cross(nextYVertex.subtract(thisVertex));
-                Vector3f n6 = nextYVertex.subtract(thisVertex).cross(nextXVertex.subtract(thisVertex));
-
-                vertexNormal[index] = (n1.add(n2).add(n3).add(n4).add(n5).add(n6)).normalize();
+                // 6-connected, with triangle-area correction: the edges to
+                // the neighbours going around the vertex, then the sum of the
+                // cross products of consecutive edges
+                int pIndex = paddedSide * (y + this.padding) + (x + this.padding);
+                float tx = vertexPosition[pIndex * 3];
+                float ty = vertexPosition[pIndex * 3 + 1];
+                float tz = vertexPosition[pIndex * 3 + 2];
+                for (int e = 0; e < 6; e++) {
+                    int neighbour = pIndex + paddedSide * NEIGHBOUR_Y[e] + NEIGHBOUR_X[e];
+                    edge[e * 3] = vertexPosition[neighbour * 3] - tx;
+                    edge[e * 3 + 1] = vertexPosition[neighbour * 3 + 1] - ty;
+                    edge[e * 3 + 2] = vertexPosition[neighbour * 3 + 2] - tz;
+                }
                 
-                // Texture coordinates (this is global planet texture coordinates)
-                float jx = (float)x / this.quads;
-                float jy = (float)y / this.quads;
-                textureCoordinate[index] = new Vector2f(
-                        (1 - jx) * this.texXMin + jx * this.texXMax, 
-                        (1 - jy) * this.texYMin + jy * this.texYMax);
+                float nx = 0, ny = 0, nz = 0;
+                for (int e = 0; e < 6; e++) {
+                    int u = e * 3;
+                    int v = ((e + 1) % 6) * 3;
+                    float cx = (edge[u + 1] * edge[v + 2]) - (edge[u + 2] * edge[v + 1]);
+                    float cy = (edge[u + 2] * edge[v]) - (edge[u] * edge[v + 2]);
+                    float cz = (edge[u] * edge[v + 1]) - (edge[u + 1] * edge[v]);
+                    if (e == 0) {
+                        nx = cx;
+                        ny = cy;
+                        nz = cz;
+                    } else {
+                        nx += cx;
+                        ny += cy;
+                        nz += cz;
+                    }
+                }
                 
+                Vector3f n = scratch.vector.set(nx, ny, nz).normalizeLocal();
+                vertexNormal[index * 3] = n.x;
+                vertexNormal[index * 3 + 1] = n.y;
+                vertexNormal[index * 3 + 2] = n.z;
             }
         }
         
     }
     
-    protected IntBuffer generateIndices() {
-        IntBuffer indexBuffer;
-        if (skirting)
-            indexBuffer = BufferUtils.createIntBuffer(3 * totalTriangles);
-       else
-            indexBuffer = BufferUtils.createIntBuffer(3 * quadTriangles);
+    private ByteBuffer createByteBuffer(int size) {
+        this.byteSize += size;
+        if (this.bufferPool == null)
+            return BufferUtils.createByteBuffer(size);
         
-        for (int y = 0; y < quads; y++) {
-            for (int x = 0; x < quads; x++) {
-                indexBuffer.put(y * (quads + 1) + x);
-                indexBuffer.put((y + 1) * (quads + 1) + x);
-                indexBuffer.put(y * (quads + 1) + x + 1);
-                indexBuffer.put((y + 1) * (quads + 1) + x);
-                indexBuffer.put((y + 1) * (quads + 1) + x + 1);
-                indexBuffer.put(y * (quads + 1) + x + 1);
-            }
-        }  
-
-        if (skirting) {
-            int skirtOffset = (this.quads + 1) * (this.quads + 1);
-            for (int y = 0; y < 1; y++) {
-                for (int x = 0; x < edgeVertexIndex.length; x++) {
-                    if (x != edgeVertexIndex.length - 1) {
-                        indexBuffer.put(edgeVertexIndex[x]);
-                        indexBuffer.put(edgeVertexIndex[x + 1]);
-                        indexBuffer.put(x + skirtOffset);                
-                        indexBuffer.put(x + skirtOffset);
-                        indexBuffer.put(edgeVertexIndex[x + 1]);       
-                        indexBuffer.put(x + 1 + skirtOffset);
-                    } else {
-                        indexBuffer.put(edgeVertexIndex[x]);
-                        indexBuffer.put(edgeVertexIndex[0]);
-                        indexBuffer.put(x + skirtOffset);                
-                        indexBuffer.put(x + skirtOffset);
-                        indexBuffer.put(edgeVertexIndex[0]);       
-                        indexBuffer.put(skirtOffset);
-                    }
-
-                }
-            }            
+        if (this.pooledBuffers == null)
+            this.pooledBuffers = new ArrayList<ByteBuffer>(4);
+        ByteBuffer buffer = this.bufferPool.borrow(size);
+        this.pooledBuffers.add(buffer);
+        return buffer;
+    }
+    
+    private FloatBuffer createFloatBuffer(int size) {
+        if (this.bufferPool == null) {
+            this.byteSize += 4 * size;
+            return BufferUtils.createFloatBuffer(size);
         }
-
-        return indexBuffer;
-        
+        return createByteBuffer(4 * size).asFloatBuffer();
     }
     
-    protected ColorRGBA getHeightColor(float height, float heightScale) {
-        ColorRGBA color = new ColorRGBA();
-        
+    private ShortBuffer createShortBuffer(int size) {
+        if (this.bufferPool == null) {
+            this.byteSize += 2 * size;
+            return BufferUtils.createShortBuffer(size);
+        }
+        return createByteBuffer(2 * size).asShortBuffer();
+    }
+    
+    protected void putHeightColor(FloatBuffer colorBuffer, float height, float heightScale) {
+        colorBuffer.put(HEIGHT_COLORS[getHeightColorIndex(height, heightScale)]);
+    }
+    
+    protected int getHeightColorIndex(float height, float heightScale) {
         if( height <= 0f ) {
-            color.r=0.0f;
-            color.g=0.4f;
-            color.b=0.8f;
-            color.a=1.0f; // Ocean
+            return 0; // Ocean
         } else if( height <= heightScale * .1f ) {
-            color.r=0.83f;
-            color.g=0.72f;
-            color.b=0.34f;
-            color.a=1.0f; // Sand
+            return 1; // Sand
         } else if( height <= heightScale * .83f ) {
-            color.r=0.2f;
-            color.g=0.6f;
-            color.b=0.1f;
-            color.a=1.0f; // Grass
+            return 2; // Grass
         } else { 
-            color.r=0.5f;
-            color.g=0.5f;
-            color.b=0.5f;
-            color.a=1.0f; // Mountains
+            return 3; // Mountains
         }
-        
-        return color;
     }
         
+    /**
+     * Flat working arrays of the patch builder. Grown to the largest patch
+     * built on the thread and never shrunk, so building a patch doesn't 
+     * allocate per vertex.
+     */
+    protected static class PatchScratch {
+        
+        protected float[] unitSphereX = new float[0];
+        protected float[] unitSphereY = new float[0];
+        protected float[] unitSphereZ = new float[0];
+        protected float[] height = new float[0];
+        protected float[] gradientX = new float[0];
+        protected float[] gradientY = new float[0];
+        protected float[] gradientZ = new float[0];
+        /// x, y, z of the padded grid
+        protected float[] position = new float[0];
+        /// x, y, z of the unpadded grid, or of the padded grid for analytic normals
+        protected float[] normal = new float[0];
+        protected float[] edge = new float[18];
+        /// samples taken from the edge exchange, and the ones left to sample
+        protected boolean[] shared = new boolean[0];
+        protected boolean[] edgeTaken = new boolean[4];
+        protected boolean[] cornerTaken = new boolean[4];
+        protected boolean[] edgeLowerEnd = new boolean[4];
+        protected EdgeSampleExchange.Samples[] edgeSamples = new EdgeSampleExchange.Samples[4];
+        protected int[] missingIndex = new int[0];
+        protected float[] missingX = new float[0];
+        protected float[] missingY = new float[0];
+        protected float[] missingZ = new float[0];
+        protected float[] missingHeight = new float[0];
+        protected float[] missingGradientX = new float[0];
+        protected float[] missingGradientY = new float[0];
+        protected float[] missingGradientZ = new float[0];
+        protected Vector3f vector = new Vector3f();
+        protected Vector3f other = new Vector3f();
+        
+        protected void ensureCapacity(int paddedCount, int count) {
+            if (this.height.length < paddedCount) {
+                this.unitSphereX = new float[paddedCount];
+                this.unitSphereY = new float[paddedCount];
+                this.unitSphereZ = new float[paddedCount];
+                this.height = new float[paddedCount];
+                this.gradientX = new float[paddedCount];
+                this.gradientY = new float[paddedCount];
+                this.gradientZ = new float[paddedCount];
+                this.position = new float[3 * paddedCount];
+                this.shared = new boolean[paddedCount];
+                this.missingIndex = new int[paddedCount];
+                this.missingX = new float[paddedCount];
+                this.missingY = new float[paddedCount];
+                this.missingZ = new float[paddedCount];
+                this.missingHeight = new float[paddedCount];
+                this.missingGradientX = new float[paddedCount];
+                this.missingGradientY = new float[paddedCount];
+                this.missingGradientZ = new float[paddedCount];
+            }
+            int normalCount = Math.max(paddedCount, count);
+            if (this.normal.length < 3 * normalCount)
+                this.normal = new float[3 * normalCount];
+        }
+        
+    }
+    
 }
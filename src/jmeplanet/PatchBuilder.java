@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PatchBuilder prepares patches on a pool of worker threads, so splitting
+ * and merging quads doesn't stall the render thread.
+ * 
+ * A quad submits its patch and polls the returned <code>Task</code> on
+ * later frames, all scene graph changes stay on the render thread. Patches,
+ * the edge sample exchange, the buffer pool and the height data sources are 
+ * safe to use from several workers at once.
+ */
+public class PatchBuilder {
+    
+    /**
+     * A patch being prepared. Cancelling it releases the patch once it is 
+     * done, so an abandoned build doesn't keep its pooled buffers.
+     */
+    public static class Task implements Runnable {
+        
+        private final Patch patch;
+        private boolean done;
+        private boolean cancelled;
+        private RuntimeException failure;
+        
+        protected Task(Patch patch) {
+            this.patch = patch;
+        }
+        
+        public void run() {
+            synchronized (this) {
+                if (this.cancelled)
+                    return;
+            }
+            
+            RuntimeException failure = null;
+            try {
+                this.patch.prepare();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            
+            synchronized (this) {
+                this.done = true;
+                this.failure = failure;
+                if (this.cancelled)
+                    this.patch.release();
+            }
+        }
+        
+        public synchronized boolean isDone() {
+            return this.done;
+        }
+        
+        /**
+         * The prepared patch, once <code>isDone</code>. Rethrows what 
+         * <code>Patch.prepare</code> threw on the worker.
+         */
+        public synchronized Patch getPatch() {
+            if (!this.done)
+                throw new IllegalStateException("Patch is not prepared yet");
+            if (this.failure != null)
+                throw new IllegalStateException("Patch preparation failed", this.failure);
+            return this.patch;
+        }
+        
+        public synchronized void cancel() {
+            if (this.cancelled)
+                return;
+            this.cancelled = true;
+            if (this.done)
+                this.patch.release();
+        }
+    }
+    
+    private final ExecutorService executor;
+    
+    /**
+     * Builder with a worker for every core but the one of the render thread.
+     */
+    public PatchBuilder() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+    
+    public PatchBuilder(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PatchBuilder-" + count.incrementAndGet());
+                // workers must neither keep the application alive nor
+                // compete with the render thread
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Queues <code>patch</code> for <code>Patch.prepare</code>. The patch 
+     * must not be touched until the task is done.
+     */
+    public Task submit(Patch patch) {
+        Task task = new Task(patch);
+        this.executor.execute(task);
+        return task;
+    }
+    
+    /**
+     * Stops the workers, patches still queued are never prepared.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+    
+}
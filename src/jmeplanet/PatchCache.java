@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PatchCache keeps the patches of recently hidden quads, so a quad shown 
+ * again, when the camera comes back or a split quad merges, takes its patch
+ * back instead of building it from the height data again.
+ * 
+ * Patches are keyed by the name of their quad, which is the layer and side
+ * followed by the index of each sub quad down the tree, and evicted least 
+ * recently used first once they hold more than <code>maxBytes</code>. An 
+ * evicted patch is released, so its buffers go back to the buffer pool.
+ * 
+ * Cached patches don't follow changes to the data source or the patch 
+ * settings, <code>clear</code> the cache after such changes. Quads of 
+ * different cube faces may use the cache at once.
+ */
+public class PatchCache {
+    
+    /// 32 MB
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+    
+    private final LinkedHashMap<String, Patch> patches = new LinkedHashMap<String, Patch>(64, 0.75f, true);
+    private long maxBytes;
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    public PatchCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+    
+    public PatchCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Keeps the prepared <code>patch</code> of the quad <code>address</code>,
+     * its geometry must already be detached. Replaces and releases a patch
+     * cached for the same quad.
+     */
+    public synchronized void put(String address, Patch patch) {
+        Patch previous = this.patches.put(address, patch);
+        if (previous != null && previous != patch) {
+            this.cachedBytes -= previous.getByteSize();
+            previous.release();
+        }
+        this.cachedBytes += patch.getByteSize();
+        evict();
+    }
+    
+    /**
+     * Removes and returns the patch cached for the quad <code>address</code>,
+     * or null.
+     */
+    public synchronized Patch take(String address) {
+        Patch patch = this.patches.remove(address);
+        if (patch == null) {
+            this.misses++;
+            return null;
+        }
+        
+        this.hits++;
+        this.cachedBytes -= patch.getByteSize();
+        return patch;
+    }
+    
+    /**
+     * Releases all cached patches.
+     */
+    public synchronized void clear() {
+        for (Patch patch : this.patches.values())
+            patch.release();
+        this.patches.clear();
+        this.cachedBytes = 0;
+    }
+    
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+    
+    public synchronized long getMaxBytes() {
+        return this.maxBytes;
+    }
+    
+    private void evict() {
+        Iterator<Map.Entry<String, Patch>> it = this.patches.entrySet().iterator();
+        while (this.cachedBytes > this.maxBytes && it.hasNext()) {
+            Patch patch = it.next().getValue();
+            it.remove();
+            this.cachedBytes -= patch.getByteSize();
+            patch.release();
+            this.evictions++;
+        }
+    }
+    
+    public synchronized int getPatchCount() {
+        return this.patches.size();
+    }
+    
+    /// Bytes of buffers and samples held by the cached patches
+    public synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+    
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+    
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+    
+    /// Share of the patches prepared that came from the cache
+    public synchronized float getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0f : (float)this.hits / lookups;
+    }
+    
+    /// Patches released because the cache was full
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "PatchCache[patches=" + this.patches.size()
+                + " cached=" + this.cachedBytes
+                + " hits=" + this.hits
+                + " misses=" + this.misses
+                + " evictions=" + this.evictions + "]";
+    }
+    
+}
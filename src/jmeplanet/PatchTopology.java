@@ -0,0 +1,163 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PatchTopology holds everything about a patch mesh that only depends on
+ * its number of quads: the skirt edge vertices and the index buffers with
+ * and without the skirt.
+ * 
+ * One instance per quad count is shared by every patch in the process, so 
+ * the index buffers are built (and uploaded) once and toggling the skirt is
+ * a swap of buffers. Indices are 16 bit whenever the vertices fit.
+ */
+public class PatchTopology {
+    
+    private static final Map<Integer, PatchTopology> topologies = new HashMap<Integer, PatchTopology>();
+    
+    protected final int quads;
+    protected final int[] edgeVertexIndex;
+    protected final VertexBuffer indexBuffer;
+    protected final VertexBuffer skirtIndexBuffer;
+    
+    public static PatchTopology get(int quads) {
+        synchronized (topologies) {
+            PatchTopology topology = topologies.get(quads);
+            if (topology == null) {
+                topology = new PatchTopology(quads);
+                topologies.put(quads, topology);
+            }
+            return topology;
+        }
+    }
+    
+    protected PatchTopology(int quads) {
+        this.quads = quads;
+        
+        int verticesPerSide = quads + 1;
+        int quadVertexCount = verticesPerSide * verticesPerSide;
+        int skirtVertexCount = quads * 4;
+        
+        // Get the patch's edge vertex indexes going clockwise
+        int indexEdgeVertexIndex = 0;
+        this.edgeVertexIndex = new int[skirtVertexCount];
+        for (int i = 0; i < verticesPerSide; i++)
+            edgeVertexIndex[indexEdgeVertexIndex++] = i;
+        for (int i = verticesPerSide + quads; i < quadVertexCount + 1; i+=verticesPerSide)
+            edgeVertexIndex[indexEdgeVertexIndex++] = i;
+        for (int i = quadVertexCount - 2; i >= verticesPerSide * quads; i--)
+            edgeVertexIndex[indexEdgeVertexIndex++] = i;
+        for (int i = verticesPerSide * quads - verticesPerSide; i > 0; i-=verticesPerSide)
+            edgeVertexIndex[indexEdgeVertexIndex++] = i;
+        
+        boolean shortIndices = quadVertexCount + skirtVertexCount <= 65536;
+        this.indexBuffer = createIndexBuffer(generateIndices(false), shortIndices);
+        this.skirtIndexBuffer = createIndexBuffer(generateIndices(true), shortIndices);
+    }
+    
+    public int getQuads() {
+        return this.quads;
+    }
+    
+    /**
+     * Edge vertices going clockwise, the skirt vertices hang below these.
+     * Shared, don't modify.
+     */
+    public int[] getEdgeVertexIndex() {
+        return this.edgeVertexIndex;
+    }
+    
+    /**
+     * Shared index buffer, set it on a mesh with 
+     * <code>Mesh.setBuffer(VertexBuffer)</code>.
+     */
+    public VertexBuffer getIndexBuffer(boolean skirting) {
+        return skirting ? this.skirtIndexBuffer : this.indexBuffer;
+    }
+    
+    private VertexBuffer createIndexBuffer(int[] indices, boolean shortIndices) {
+        Buffer data;
+        Format format;
+        if (shortIndices) {
+            ShortBuffer shortBuffer = BufferUtils.createShortBuffer(indices.length);
+            for (int i = 0; i < indices.length; i++)
+                shortBuffer.put((short)indices[i]);
+            data = shortBuffer;
+            format = Format.UnsignedShort;
+        } else {
+            IntBuffer intBuffer = BufferUtils.createIntBuffer(indices.length);
+            intBuffer.put(indices);
+            data = intBuffer;
+            format = Format.UnsignedInt;
+        }
+        data.rewind();
+        
+        VertexBuffer buffer = new VertexBuffer(Type.Index);
+        buffer.setupData(Usage.Static, 3, format, data);
+        return buffer;
+    }
+    
+    private int[] generateIndices(boolean skirting) {
+        int quadTriangles = 2 * quads * quads;
+        int skirtTriangles = edgeVertexIndex.length * 2;
+        int[] indices = new int[3 * (skirting ? quadTriangles + skirtTriangles : quadTriangles)];
+        int i = 0;
+        
+        for (int y = 0; y < quads; y++) {
+            for (int x = 0; x < quads; x++) {
+                indices[i++] = y * (quads + 1) + x;
+                indices[i++] = (y + 1) * (quads + 1) + x;
+                indices[i++] = y * (quads + 1) + x + 1;
+                indices[i++] = (y + 1) * (quads + 1) + x;
+                indices[i++] = (y + 1) * (quads + 1) + x + 1;
+                indices[i++] = y * (quads + 1) + x + 1;
+            }
+        }  
+
+        if (skirting) {
+            int skirtOffset = (quads + 1) * (quads + 1);
+            for (int x = 0; x < edgeVertexIndex.length; x++) {
+                int next = (x + 1) % edgeVertexIndex.length;
+                indices[i++] = edgeVertexIndex[x];
+                indices[i++] = edgeVertexIndex[next];
+                indices[i++] = x + skirtOffset;                
+                indices[i++] = x + skirtOffset;
+                indices[i++] = edgeVertexIndex[next];       
+                indices[i++] = next + skirtOffset;
+            }
+        }
+
+        return indices;
+    }
+    
+}
@@ -22,12 +22,18 @@ THE SOFTWARE.
 package jmeplanet;
 
 import com.jme3.material.Material;
+import com.jme3.material.RenderState.FaceCullMode;
 import com.jme3.math.ColorRGBA;
 import com.jme3.math.FastMath;
+import com.jme3.math.Transform;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.renderer.queue.RenderQueue.Bucket;
 import com.jme3.scene.Node;
 import com.jme3.shader.VarType;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Quad
@@ -39,9 +45,49 @@ import com.jme3.shader.VarType;
  */
 public class Planet extends Node {
     
+    /**
+     * Visits the quads of one cube face of one layer on the traversal pool.
+     * It tests the frustum on its own copy of the camera, since the test 
+     * changes the plane state of the camera.
+     */
+    protected static class FaceUpdate extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        protected final Quad quad;
+        protected Camera camera;
+        protected Vector3f position;
+        protected Transform worldTransform;
+        protected Horizon horizon;
+        
+        public FaceUpdate(Quad quad) {
+            this.quad = quad;
+        }
+        
+        protected void set(Vector3f position, Camera camera, Transform worldTransform, Horizon horizon) {
+            reinitialize();
+            this.position = position;
+            this.worldTransform = worldTransform;
+            this.horizon = horizon;
+            if (camera == null)
+                this.camera = null;
+            else if (this.camera == null)
+                this.camera = camera.clone();
+            else
+                this.camera.copyFrom(camera);
+        }
+        
+        @Override
+        protected void compute() {
+            this.quad.setCameraPosition(this.position, this.camera, this.worldTransform, this.horizon);
+        }
+    }
+    
     protected Material terrainMaterial;
     protected Material oceanMaterial;
     protected Material atmosphereMaterial;
+    protected Material terrainPackedMaterial;
+    protected Vector3f planetCenter = new Vector3f(Float.NaN, Float.NaN, Float.NaN);
     protected Node planetNode;
     protected Node terrainNode;
     protected Node oceanNode;
@@ -61,9 +107,27 @@ public class Planet extends Node {
     protected Quad[] terrainSide = new Quad[6];
     protected Quad[] oceanSide = new Quad[6];
     protected Quad[] atmosphereSide = new Quad[6];
+    protected EdgeSampleExchange terrainSampleExchange = new EdgeSampleExchange();
+    protected DirectBufferPool bufferPool = new DirectBufferPool();
+    protected PatchCache patchCache = new PatchCache();
+    protected PatchBuilder patchBuilder;
+    protected LodCommitQueue commitQueue = new LodCommitQueue();
+    protected ForkJoinPool traversalPool;
+    // terrain, ocean and atmosphere faces
+    protected FaceUpdate[] faceUpdate = new FaceUpdate[18];
+    protected FaceUpdate[] staleFaces = new FaceUpdate[18];
+    protected LodStrategy lodStrategy = new ScreenSpaceErrorLodStrategy();
     protected boolean wireframeMode;
     protected boolean oceanFloorCulling;
-    protected Vector3f planetToCamera;
+    protected Horizon horizon = new Horizon();
+    protected boolean horizonCulling = true;
+    protected Vector3f planetToCamera = new Vector3f();
+    protected boolean skirting;
+    // What the quads saw of the camera besides its position and rotation:
+    // viewport size and placement, frustum and parallel projection
+    protected boolean viewCulled;
+    protected float[] view = new float[13];
+    protected float[] nextView = new float[13];
     protected float distanceToCamera;
     protected boolean currentlyInAtmosphere;
     protected boolean previouslyInAtmosphere;
@@ -138,9 +202,29 @@ public class Planet extends Node {
             prepareAtmosphere();
     }
     
+    /**
+     * Updates the level of detail for <code>camera</code>, whose projection
+     * drives the <code>LodStrategy</code> and whose frustum limits the 
+     * refinement to the quads in view.
+     */
+    public void setCamera(Camera camera) {
+        this.lodStrategy.setCamera(camera);
+        update(camera.getLocation(), camera);
+    }
+    
     public void setCameraPosition(Vector3f position) {
+        update(position, null);
+    }
+    
+    /**
+     * Updates the level of detail for a camera at <code>position</code>, 
+     * quads outside the frustum of <code>camera</code> or below the 
+     * horizon aren't refined. 
+     * A null camera refines regardless of the frustum.
+     */
+    protected void update(Vector3f position, Camera camera) {
         // get vector between planet and camera
-        this.planetToCamera = position.subtract(this.getWorldTranslation());
+        this.planetToCamera.set(position).subtractLocal(this.getWorldTranslation());
         // get distance to surface
         this.distanceToCamera = this.planetToCamera.length() - this.baseRadius;
         
@@ -170,22 +254,69 @@ public class Planet extends Node {
             }
         }
         
-        // Update camera positions for all quads
-        int currentTerrainMaxDepth = 0;
-        for (int i = 0; i < 6; i++) {
-            if (terrainSide[i] != null) {
-                terrainSide[i].setCameraPosition(position);
-                // get current max depth of quad for skirt toggling
-                currentTerrainMaxDepth = Math.max(currentTerrainMaxDepth, terrainSide[i].getCurrentMaxDepth());                
+        // The lowest terrain, or the sea level above it, hides whatever is
+        // behind the curvature of the planet
+        Horizon surfaceHorizon = null;
+        if (this.horizonCulling) {
+            float occluderHeight = Float.MAX_VALUE;
+            for (int i = 0; i < 6; i++) {
+                if (terrainSide[i] != null)
+                    occluderHeight = Math.min(occluderHeight, terrainSide[i].getHeightMin());
             }
-            if (oceanSide[i] != null) {
-                oceanSide[i].setCameraPosition(position);
-            }
-            if (atmosphereSide[i] != null) {
-                atmosphereSide[i].setCameraPosition(position);
+            if (this.oceanNode != null)
+                occluderHeight = Math.max(occluderHeight, 0f);
+            this.horizon.set(this.planetToCamera, this.baseRadius + occluderHeight);
+            surfaceHorizon = this.horizon;
+        }
+        
+        // The shaders get the planet space position of a vertex from its
+        // world position and the planet center
+        Vector3f worldCenter = this.planetNode.getWorldTranslation();
+        if (!this.planetCenter.equals(worldCenter)) {
+            this.planetCenter.set(worldCenter);
+            setPlanetCenter(this.terrainMaterial, this.planetCenter);
+            setPlanetCenter(this.terrainPackedMaterial, this.planetCenter);
+            setPlanetCenter(this.oceanMaterial, this.planetCenter);
+            setPlanetCenter(this.atmosphereMaterial, this.planetCenter);
+            invalidate();
+        }
+        
+        // Quads are only visited again once the camera moved far enough, 
+        // unless the view changed otherwise
+        if (updateView(camera))
+            invalidate();
+        
+        // Update camera positions for all quads, the atmosphere is seen from
+        // below and is never culled by the horizon. The quads take the 
+        // camera in planet space, like their bounds and the horizon.
+        Vector3f planetCamera = this.planetToCamera;
+        Transform worldTransform = this.planetNode.getWorldTransform();
+        if (this.traversalPool != null) {
+            updateFaces(planetCamera, camera, worldTransform, surfaceHorizon);
+        } else {
+            for (int i = 0; i < 6; i++) {
+                if (terrainSide[i] != null) {
+                    terrainSide[i].setCameraPosition(planetCamera, camera, worldTransform, surfaceHorizon);
+                }
+                if (oceanSide[i] != null) {
+                    oceanSide[i].setCameraPosition(planetCamera, camera, worldTransform, surfaceHorizon);
+                }
+                if (atmosphereSide[i] != null) {
+                    atmosphereSide[i].setCameraPosition(planetCamera, camera, worldTransform, null);
+                }
             }
         }
         
+        // Apply the splits and merges that fit in this frame
+        this.commitQueue.commit();
+        
+        // get current max depth of quad for skirt toggling
+        int currentTerrainMaxDepth = 0;
+        for (int i = 0; i < 6; i++) {
+            if (terrainSide[i] != null)
+                currentTerrainMaxDepth = Math.max(currentTerrainMaxDepth, terrainSide[i].getCurrentMaxDepth());
+        }
+        
         // toggle skirting on the terrain if needed
         boolean skirting;
         // Are we at minDepth?
@@ -196,10 +327,109 @@ public class Planet extends Node {
             //otherwise turn on skirting
             skirting = true;
         }
-        // Go through and set skirting on all terrain quads
+        // Go through and set skirting on all terrain quads, new quads 
+        // inherit it
+        if (skirting != this.skirting) {
+            this.skirting = skirting;
+            for (int i = 0; i < 6; i++) {
+                if (terrainSide[i] != null)
+                    terrainSide[i].setSkirting(skirting);
+            }
+        }
+    }
+    
+    /**
+     * Updates the cube faces of all layers in parallel on the traversal 
+     * pool, the calling thread takes one face itself. Faces don't share 
+     * quads, and the quads only request their scene graph changes, which 
+     * the commit queue applies on the calling thread afterwards.
+     */
+    protected void updateFaces(Vector3f position, Camera camera, Transform worldTransform, Horizon surfaceHorizon) {
+        int count = 0;
+        for (int i = 0; i < 6; i++) {
+            count = addFaceUpdate(count, i, terrainSide[i], position, camera, worldTransform, surfaceHorizon);
+            count = addFaceUpdate(count, 6 + i, oceanSide[i], position, camera, worldTransform, surfaceHorizon);
+            count = addFaceUpdate(count, 12 + i, atmosphereSide[i], position, camera, worldTransform, null);
+        }
+        if (count == 0)
+            return;
+        
+        for (int i = 1; i < count; i++)
+            this.traversalPool.execute(this.staleFaces[i]);
+        try {
+            this.staleFaces[0].invoke();
+        } finally {
+            // no quad may be touched by a worker past this point
+            for (int i = 1; i < count; i++)
+                this.staleFaces[i].quietlyJoin();
+        }
+        for (int i = 1; i < count; i++)
+            this.staleFaces[i].join();
+    }
+    
+    /**
+     * Adds the update of the face <code>quad</code> to the stale faces at
+     * <code>count</code>, unless the camera didn't move enough to change 
+     * anything there. Returns the new count.
+     */
+    protected int addFaceUpdate(int count, int face, Quad quad, Vector3f position, 
+            Camera camera, Transform worldTransform, Horizon horizon) {
+        if (quad == null || !quad.isStale(position, camera != null ? camera.getRotation() : null))
+            return count;
+        
+        if (this.faceUpdate[face] == null || this.faceUpdate[face].quad != quad)
+            this.faceUpdate[face] = new FaceUpdate(quad);
+        this.faceUpdate[face].set(position, camera, worldTransform, horizon);
+        this.staleFaces[count] = this.faceUpdate[face];
+        return count + 1;
+    }
+    
+    /**
+     * Returns true if the view of <code>camera</code> changed since the last
+     * update in a way its position and rotation don't tell: its projection 
+     * or viewport. The quads notice a turn of the camera themselves.
+     */
+    protected boolean updateView(Camera camera) {
+        boolean changed = (camera != null) != this.viewCulled;
+        this.viewCulled = camera != null;
+        if (camera == null)
+            return changed;
+        
+        float[] current = this.nextView;
+        current[0] = camera.getWidth();
+        current[1] = camera.getHeight();
+        current[2] = camera.getViewPortLeft();
+        current[3] = camera.getViewPortRight();
+        current[4] = camera.getViewPortTop();
+        current[5] = camera.getViewPortBottom();
+        current[6] = camera.getFrustumNear();
+        current[7] = camera.getFrustumFar();
+        current[8] = camera.getFrustumLeft();
+        current[9] = camera.getFrustumRight();
+        current[10] = camera.getFrustumTop();
+        current[11] = camera.getFrustumBottom();
+        current[12] = camera.isParallelProjection() ? 1f : 0f;
+        if (!Arrays.equals(current, this.view)) {
+            this.nextView = this.view;
+            this.view = current;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /**
+     * Makes the next update visit every quad. Needed after changing the 
+     * settings of the <code>LodStrategy</code> by hand, other changes are
+     * noticed.
+     */
+    public void invalidate() {
         for (int i = 0; i < 6; i++) {
             if (terrainSide[i] != null)
-                terrainSide[i].setSkirting(skirting);
+                terrainSide[i].invalidate();
+            if (oceanSide[i] != null)
+                oceanSide[i].invalidate();
+            if (atmosphereSide[i] != null)
+                atmosphereSide[i].invalidate();
         }
     }
     
@@ -227,6 +457,29 @@ public class Planet extends Node {
         return this.atmosphereRadius;
     }
     
+    /**
+     * Pool of the vertex buffers of all layers, for its usage statistics.
+     */
+    public DirectBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+    
+    /**
+     * Cache of the patches of recently hidden quads of all layers, for its
+     * hit rate. Clear it after changing the data source.
+     */
+    public PatchCache getPatchCache() {
+        return this.patchCache;
+    }
+    
+    /**
+     * Queue of the quad swaps of all layers, set its budget to trade frame
+     * time for how fast the detail follows the camera.
+     */
+    public LodCommitQueue getCommitQueue() {
+        return this.commitQueue;
+    }
+    
     public float getHeightScale() {
         return dataSource.getHeightScale();
     }
@@ -301,28 +554,161 @@ public class Planet extends Node {
     }
     
     public void setWireframe(boolean value) {
+        this.terrainMaterial.getAdditionalRenderState().setWireframe(value);
+        if (this.terrainPackedMaterial != null)
+            this.terrainPackedMaterial.getAdditionalRenderState().setWireframe(value);
+        setVisiblity(this.oceanMaterial, !value);
+        setVisiblity(this.atmosphereMaterial, !value);
+    }
+    
+    /**
+     * Builds terrain normals from the analytic height gradient instead of
+     * neighbouring vertices, which needs a <code>GradientHeightDataSource</code>.
+     * Only affects patches built afterwards, the patch cache is cleared.
+     */
+    public void setAnalyticNormals(boolean value) {
+        this.patchCache.clear();
+        for (int i = 0; i < 6; i++) {
+            if (terrainSide[i] != null)
+                terrainSide[i].setAnalyticNormals(value);
+        }
+    }
+    
+    /**
+     * Builds terrain meshes in a packed vertex layout of less than half the
+     * size, decoded by the <code>PackedVertices</code> variant of Terrain.j3md.
+     * Packed meshes can't be used for mesh collisions or picking. Only affects
+     * patches built afterwards, the patch cache is cleared.
+     */
+    public void setPackedVertices(boolean value) {
+        this.patchCache.clear();
+        
+        // Only materials that decode the packed layout can draw it
+        Material packedMaterial = null;
+        if (value && this.terrainMaterial.getMaterialDef().getMaterialParam("PackedVertices") != null) {
+            if (this.terrainPackedMaterial == null) {
+                this.terrainPackedMaterial = this.terrainMaterial.clone();
+                this.terrainPackedMaterial.setBoolean("PackedVertices", true);
+            }
+            packedMaterial = this.terrainPackedMaterial;
+        }
+        
         for (int i = 0; i < 6; i++) {
             if (terrainSide[i] != null)
-                terrainSide[i].setWireframe(value);
+                terrainSide[i].setPackedMaterial(packedMaterial);
+        }
+    }
+    
+    /**
+     * Prepares the patches of all layers on the workers of 
+     * <code>patchBuilder</code>, a quad stays visible until the patches
+     * replacing it are prepared. Null prepares them on the calling thread.
+     */
+    public void setPatchBuilder(PatchBuilder patchBuilder) {
+        this.patchBuilder = patchBuilder;
+        for (int i = 0; i < 6; i++) {
+            if (terrainSide[i] != null)
+                terrainSide[i].setPatchBuilder(patchBuilder);
             if (oceanSide[i] != null)
-                oceanSide[i].setVisiblity(!value);
+                oceanSide[i].setPatchBuilder(patchBuilder);
             if (atmosphereSide[i] != null)
-                atmosphereSide[i].setVisiblity(!value);
-        }   
+                atmosphereSide[i].setPatchBuilder(patchBuilder);
+        }
     }
     
-    public void setVisiblity(boolean value) {
+    /**
+     * Decides the splits and merges of the cube faces of all layers in 
+     * parallel on <code>traversalPool</code>, the scene graph changes stay
+     * on the thread calling <code>setCamera</code>. Null visits the faces
+     * one after another on that thread.
+     */
+    public void setTraversalPool(ForkJoinPool traversalPool) {
+        this.traversalPool = traversalPool;
+    }
+    
+    public ForkJoinPool getTraversalPool() {
+        return this.traversalPool;
+    }
+    
+    /**
+     * Decides how far the quads of all layers are refined, a 
+     * <code>ScreenSpaceErrorLodStrategy</code> by default.
+     */
+    public void setLodStrategy(LodStrategy lodStrategy) {
+        this.lodStrategy = lodStrategy;
         for (int i = 0; i < 6; i++) {
             if (terrainSide[i] != null)
-                terrainSide[i].setVisiblity(value);
+                terrainSide[i].setLodStrategy(lodStrategy);
             if (oceanSide[i] != null)
-                oceanSide[i].setVisiblity(value);
+                oceanSide[i].setLodStrategy(lodStrategy);
             if (atmosphereSide[i] != null)
-                atmosphereSide[i].setVisiblity(value);
-        }   
+                atmosphereSide[i].setLodStrategy(lodStrategy);
+        }
+        invalidate();
+    }
+    
+    public LodStrategy getLodStrategy() {
+        return this.lodStrategy;
+    }
+    
+    /**
+     * Stops refining and rendering the terrain and ocean quads hidden 
+     * behind the curvature of the planet, on by default.
+     */
+    public void setHorizonCulling(boolean value) {
+        this.horizonCulling = value;
+        invalidate();
+    }
+    
+    public Horizon getHorizon() {
+        return this.horizon;
+    }
+    
+    public void setVisiblity(boolean value) {
+        setVisiblity(this.terrainMaterial, value);
+        setVisiblity(this.terrainPackedMaterial, value);
+        setVisiblity(this.oceanMaterial, value);
+        setVisiblity(this.atmosphereMaterial, value);
+    }
+    
+    private static void setVisiblity(Material material, boolean value) {
+        if (material == null)
+            return;
+        if (value)
+            material.getAdditionalRenderState().setFaceCullMode(FaceCullMode.Back);
+        else
+            material.getAdditionalRenderState().setFaceCullMode(FaceCullMode.FrontAndBack);
+    }
+    
+    /**
+     * Copy of <code>material</code> shared by all quads of a layer of 
+     * <code>radius</code>. The patches differ only in their geometry 
+     * transform, so the layer needs no material of its own per quad.
+     */
+    private static Material createLayerMaterial(Material material, float radius) {
+        Material layerMaterial = material.clone();
+        if (layerMaterial.getMaterialDef().getMaterialParam("PlanetRadius") != null)
+            layerMaterial.setFloat("PlanetRadius", radius);
+        return layerMaterial;
+    }
+    
+    /**
+     * Container of the geometries of all quads of a cube face, they attach
+     * right under it without a node of their own.
+     */
+    private static Node createFaceNode(Node layerNode, String name) {
+        Node faceNode = new Node(name + "Node");
+        layerNode.attachChild(faceNode);
+        return faceNode;
+    }
+    
+    private static void setPlanetCenter(Material material, Vector3f planetCenter) {
+        if (material != null && material.getMaterialDef().getMaterialParam("PlanetCenter") != null)
+            material.setVector3("PlanetCenter", planetCenter);
     }
     
     private void prepareTerrain() {
+        this.terrainMaterial = createLayerMaterial(this.terrainMaterial, this.baseRadius);
 
         this.terrainNode = new Node("TerrainNode");
         this.terrainNode.setShadowMode(shadowMode.Receive);
@@ -333,7 +719,7 @@ public class Planet extends Node {
         terrainSide[0] = new Quad(
                 "TerrainRight",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainRight"),
                 rightMin,
                 rightMax,
                 0f,
@@ -354,7 +740,7 @@ public class Planet extends Node {
         terrainSide[1] = new Quad(
                 "TerrainLeft",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainLeft"),
                 leftMin,
                 leftMax,
                 0f,
@@ -375,7 +761,7 @@ public class Planet extends Node {
         terrainSide[2] = new Quad(
                 "TerrainTop",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainTop"),
                 topMin,
                 topMax,
                 0f,
@@ -396,7 +782,7 @@ public class Planet extends Node {
         terrainSide[3] = new Quad(
                 "TerrainBottom",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainBottom"),
                 bottomMin,
                 bottomMax,
                 0f,
@@ -417,7 +803,7 @@ public class Planet extends Node {
         terrainSide[5] = new Quad(
                 "TerrainBack",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainBack"),
                 backMin,
                 backMax,
                 0f,
@@ -438,7 +824,7 @@ public class Planet extends Node {
         terrainSide[4] = new Quad(
                 "TerrainFront",
                 this.terrainMaterial,
-                this.terrainNode,
+                createFaceNode(this.terrainNode, "TerrainFront"),
                 frontMin,
                 frontMax,
                 0f,
@@ -453,9 +839,20 @@ public class Planet extends Node {
                 this.maxDepth,
                 null,
                 0);  
+        
+        // neighbouring patches, also across faces, share their border samples
+        for (int i = 0; i < 6; i++) {
+            terrainSide[i].setSampleExchange(this.terrainSampleExchange);
+            terrainSide[i].setBufferPool(this.bufferPool);
+            terrainSide[i].setPatchCache(this.patchCache);
+            terrainSide[i].setPatchBuilder(this.patchBuilder);
+            terrainSide[i].setCommitQueue(this.commitQueue);
+            terrainSide[i].setLodStrategy(this.lodStrategy);
+        }
     }
  
     private void prepareOcean() {        
+        this.oceanMaterial = createLayerMaterial(this.oceanMaterial, this.baseRadius);
         this.oceanNode = new Node("OceanNode");
         this.oceanNode.setShadowMode(shadowMode.Off);
         planetNode.attachChild(oceanNode);
@@ -471,7 +868,7 @@ public class Planet extends Node {
         oceanSide[0] = new Quad(
                 "OceanRight",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanRight"),
                 rightMin,
                 rightMax,
                 0f,
@@ -492,7 +889,7 @@ public class Planet extends Node {
         oceanSide[1] = new Quad(
                 "OceanLeft",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanLeft"),
                 leftMin,
                 leftMax,
                 0f,
@@ -513,7 +910,7 @@ public class Planet extends Node {
         oceanSide[2] = new Quad(
                 "OceanTop",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanTop"),
                 topMin,
                 topMax,
                 0f,
@@ -534,7 +931,7 @@ public class Planet extends Node {
         oceanSide[3] = new Quad(
                 "OceanBottom",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanBottom"),
                 bottomMin,
                 bottomMax,
                 0f,
@@ -555,7 +952,7 @@ public class Planet extends Node {
         oceanSide[5] = new Quad(
                 "OceanBack",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanBack"),
                 backMin,
                 backMax,
                 0f,
@@ -576,7 +973,7 @@ public class Planet extends Node {
         oceanSide[4] = new Quad(
                 "OceanFront",
                 this.oceanMaterial,
-                this.oceanNode,
+                createFaceNode(this.oceanNode, "OceanFront"),
                 frontMin,
                 frontMax,
                 0f,
@@ -591,9 +988,22 @@ public class Planet extends Node {
                 maxDepth,
                 null,
                 0); 
+        
+        // The sea is a bare sphere, hidden wherever the land over it is 
+        // known to stay above sea level
+        for (int i = 0; i < 6; i++) {
+            oceanSide[i].setSpherePatches(true);
+            oceanSide[i].setLandDataSource(this.dataSource);
+            oceanSide[i].setBufferPool(this.bufferPool);
+            oceanSide[i].setPatchCache(this.patchCache);
+            oceanSide[i].setPatchBuilder(this.patchBuilder);
+            oceanSide[i].setCommitQueue(this.commitQueue);
+            oceanSide[i].setLodStrategy(this.lodStrategy);
+        }
     } 
     
     private void prepareAtmosphere() {        
+        this.atmosphereMaterial = createLayerMaterial(this.atmosphereMaterial, this.atmosphereRadius);
         this.atmosphereNode = new Node("AtmosphereNode");
         this.atmosphereNode.setShadowMode(shadowMode.Off);
         planetNode.attachChild(atmosphereNode);
@@ -618,7 +1028,7 @@ public class Planet extends Node {
         atmosphereSide[0] = new Quad(
                 "AtmosphereRight",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereRight"),
                 rightMin,
                 rightMax,
                 0f,
@@ -639,7 +1049,7 @@ public class Planet extends Node {
         atmosphereSide[1] = new Quad(
                 "AtmosphereLeft",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereLeft"),
                 leftMin,
                 leftMax,
                 0f,
@@ -660,7 +1070,7 @@ public class Planet extends Node {
         atmosphereSide[2] = new Quad(
                 "AtmosphereTop",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereTop"),
                 topMin,
                 topMax,
                 0f,
@@ -681,7 +1091,7 @@ public class Planet extends Node {
         atmosphereSide[3] = new Quad(
                 "AtmosphereBottom",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereBottom"),
                 bottomMin,
                 bottomMax,
                 0f,
@@ -702,7 +1112,7 @@ public class Planet extends Node {
         atmosphereSide[5] = new Quad(
                 "AtmosphereBack",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereBack"),
                 backMin,
                 backMax,
                 0f,
@@ -723,7 +1133,7 @@ public class Planet extends Node {
         atmosphereSide[4] = new Quad(
                 "AtmosphereFront",
                 this.atmosphereMaterial,
-                this.atmosphereNode,
+                createFaceNode(this.atmosphereNode, "AtmosphereFront"),
                 frontMin,
                 frontMax,
                 0f,
@@ -738,6 +1148,15 @@ public class Planet extends Node {
                 maxDepth,
                 null,
                 0); 
+        
+        for (int i = 0; i < 6; i++) {
+            atmosphereSide[i].setSpherePatches(true);
+            atmosphereSide[i].setBufferPool(this.bufferPool);
+            atmosphereSide[i].setPatchCache(this.patchCache);
+            atmosphereSide[i].setPatchBuilder(this.patchBuilder);
+            atmosphereSide[i].setCommitQueue(this.commitQueue);
+            atmosphereSide[i].setLodStrategy(this.lodStrategy);
+        }
     }
      
 }
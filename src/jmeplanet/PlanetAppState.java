@@ -38,6 +38,7 @@ import com.jme3.shadow.DirectionalLightShadowRenderer;
 import com.jme3.shadow.EdgeFilteringMode;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * PlanetAppState
@@ -64,11 +65,15 @@ public class PlanetAppState extends AbstractAppState {
     
     protected boolean shadowsEnabled;
     protected DirectionalLightShadowRenderer dlsr; 
+    protected PatchBuilder patchBuilder;
+    protected ForkJoinPool traversalPool;
      
     public PlanetAppState(Spatial scene, DirectionalLight sun) {
         this.scene = scene;
         this.sun = sun;
         this.planets = new ArrayList<Planet>(); 
+        this.patchBuilder = new PatchBuilder();
+        this.traversalPool = new ForkJoinPool();
     }
     
     @Override
@@ -138,7 +143,7 @@ public class PlanetAppState extends AbstractAppState {
         this.nearestPlanet = findNearestPlanet();
         
         for (Planet planet: this.planets ) {
-            planet.setCameraPosition(this.app.getCamera().getLocation());
+            planet.setCamera(this.app.getCamera());
         }
         
         updateFogAndBloom();
@@ -147,12 +152,29 @@ public class PlanetAppState extends AbstractAppState {
     @Override
     public void cleanup() {
         super.cleanup();
+        this.patchBuilder.shutdown();
+        this.traversalPool.shutdown();
     }
     
+    /**
+     * Adds <code>planet</code>, its patches are prepared off the render 
+     * thread on the patch builder shared by all planets, and its cube faces
+     * are updated in parallel on the shared traversal pool.
+     */
     public void addPlanet(Planet planet) {
+        planet.setPatchBuilder(this.patchBuilder);
+        planet.setTraversalPool(this.traversalPool);
         this.planets.add(planet);
     }
     
+    public PatchBuilder getPatchBuilder() {
+        return this.patchBuilder;
+    }
+    
+    public ForkJoinPool getTraversalPool() {
+        return this.traversalPool;
+    }
+    
     public List<Planet> getPlanets() {
         return this.planets;
     }
@@ -12,6 +12,7 @@ public class PlanetShape extends ConcaveShape {
     protected float radius;
     protected HeightDataSource dataSource;
     protected javax.vecmath.Vector3f scaling;
+    protected float[] heightBounds = new float[2];
 
     public PlanetShape(Vector3f center, float radius, HeightDataSource dataSource) {
         this.center = center;
@@ -42,6 +43,20 @@ public class PlanetShape extends ConcaveShape {
         Vector3f topFrontRight = new Vector3f(aabbMax.x, aabbMax.y, aabbMin.z);
         Vector3f topBackLeft = new Vector3f(aabbMin.x, aabbMax.y, aabbMax.z);
         Vector3f topFrontLeft = new Vector3f(aabbMin.x, aabbMax.y, aabbMin.z);
+        
+        // a corner only collides when it is below the highest terrain, so 
+        // skip sampling the terrain when all corners are above it
+        this.dataSource.getHeightBounds(null, null, this.heightBounds);
+        float highest = this.radius + this.heightBounds[1];
+        if (bottomFrontLeft.distance(this.center) > highest &&
+                bottomFrontRight.distance(this.center) > highest &&
+                bottomBackLeft.distance(this.center) > highest &&
+                bottomBackRight.distance(this.center) > highest &&
+                topBackRight.distance(this.center) > highest &&
+                topFrontRight.distance(this.center) > highest &&
+                topBackLeft.distance(this.center) > highest &&
+                topFrontLeft.distance(this.center) > highest)
+            return;
 
         // calculate the midpoint of each of the 6 sides of the AABB
         Vector3f halfSize = topBackRight.subtract(bottomFrontLeft).mult(0.5f);
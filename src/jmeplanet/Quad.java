@@ -22,13 +22,16 @@ THE SOFTWARE.
 package jmeplanet;
 
 import com.jme3.math.FastMath;
+import com.jme3.math.Plane;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Transform;
 import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.scene.Node;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Spatial.CullHint;
 import com.jme3.material.Material;
 import com.jme3.bounding.BoundingBox;
-import com.jme3.material.RenderState.FaceCullMode;
-import com.jme3.shader.VarType;
 import com.jme3.terrain.heightmap.AbstractHeightMap;
 
 /**
@@ -42,6 +45,7 @@ import com.jme3.terrain.heightmap.AbstractHeightMap;
 public class Quad {
     
     protected String name;
+    // Shared by all quads of a layer
     protected Material material;
     protected Vector3f min;
     protected Vector3f max;
@@ -56,14 +60,26 @@ public class Quad {
     protected int minDepth;
     protected int maxDepth;
     protected Quad parentQuad;
+    // Container of the geometries of all quads of a cube face
     protected Node parentNode;
     protected int position;
-    protected Node quadNode;
     protected Geometry quadGeometry;
     protected Vector3f quadCenter;
     protected Patch patch;
     protected BoundingBox aabb;
+    protected float heightMin;
+    protected float heightMax;
     protected AbstractHeightMap heightMap;
+    protected boolean analyticNormals;
+    protected Material packedMaterial;
+    protected EdgeSampleExchange sampleExchange;
+    protected DirectBufferPool bufferPool;
+    protected PatchBuilder patchBuilder;
+    protected PatchBuilder.Task patchTask;
+    protected PatchCache patchCache;
+    private static final LodStrategy DEFAULT_LOD_STRATEGY = new DistanceLodStrategy();
+    // Camera keeps its plane count private, the world planes are indexed 0-5
+    private static final int FRUSTUM_PLANES = 6;
     protected Quad[] subQuad = new Quad[4];
     protected Quad[] neighborQuad = new Quad[4];
     enum Neighbor {
@@ -72,6 +88,36 @@ public class Quad {
         Bottom,
         Left
     }
+    /// Scene graph swap waiting in the commit queue
+    enum Commit {
+        None,
+        Split,
+        Merge
+    }
+    protected LodCommitQueue commitQueue;
+    protected LodStrategy lodStrategy = DEFAULT_LOD_STRATEGY;
+    protected float geometricError;
+    protected boolean inView = true;
+    protected boolean belowHorizon;
+    protected BoundingBox worldBound;
+    protected Commit commitKind = Commit.None;
+    protected float commitPriority;
+    // Camera position of the last visit, and how far the camera can move
+    // from it before a decision in the subtree may change. Zero while the
+    // subtree has work pending.
+    protected Vector3f lastPosition = new Vector3f();
+    protected float stableDistance;
+    // Camera rotation of the last visit, and how far (in radians) the camera
+    // can turn from it before a quad of the subtree crosses a frustum plane
+    protected Quaternion lastRotation = new Quaternion();
+    protected float stableAngle;
+    protected int subtreeDepth;
+    protected boolean skirting;
+    protected boolean spherePatches;
+    // Terrain over the layer, quads of the layer entirely below it are 
+    // never seen
+    protected HeightDataSource landDataSource;
+    protected boolean belowLand;
     
     public Quad(
             String name,
@@ -93,7 +139,7 @@ public class Quad {
             int position) {
         
         this.name = name;
-        this.material = material.clone();
+        this.material = material;
         this.min = min;
         this.max = max;
         this.texXMin = texXMin;
@@ -110,27 +156,92 @@ public class Quad {
         this.position = position;
         this.parentNode = parentNode;
         
-        this.aabb = new BoundingBox();
         this.quadCenter = new Vector3f();
+        this.subtreeDepth = depth;
+        prepareBounds();
     }
     
     public void setCameraPosition(Vector3f position) {
-        // Update camera position for subquads
+        setCameraPosition(position, null, null, null);
+    }
+    
+    /**
+     * Updates the quad tree for a camera at <code>position</code>, in 
+     * planet space like the bounds of the quads and the horizon. Quads 
+     * outside the frustum of <code>camera</code> or below the 
+     * <code>horizon</code> aren't split, and split ones merge back at the 
+     * lowest priority. Quads below the horizon aren't rendered either.
+     * <code>worldTransform</code> takes the quad bounds from planet space 
+     * to world space. A null camera or horizon turns that culling off.
+     *
+     * A subtree with no work pending isn't visited again until the camera
+     * moved or turned far enough to change one of its decisions. Changes of
+     * the camera other than its position and rotation, like its projection,
+     * need an <code>invalidate</code>.
+     * 
+     * Quads of different cube faces may be updated at once as long as each 
+     * update has a camera of its own, scene graph changes are left to the 
+     * commit queue.
+     */
+    public void setCameraPosition(Vector3f position, Camera camera, Transform worldTransform, Horizon horizon) {
+        Quaternion rotation = camera != null ? camera.getRotation() : null;
+        if (!isStale(position, rotation))
+            return;
+        this.lastPosition.set(position);
+        this.stableDistance = Float.MAX_VALUE;
+        if (rotation != null)
+            this.lastRotation.set(rotation);
+        this.stableAngle = Float.MAX_VALUE;
+        
+        float maxRadius = this.baseRadius + this.heightMax;
+        this.belowHorizon = horizon != null && horizon.isOccluded(this.aabb, maxRadius);
+        if (horizon != null)
+            this.stableDistance = Math.min(this.stableDistance, horizon.getStableDistance(this.aabb, maxRadius));
+        boolean hidden = this.belowHorizon || this.belowLand;
+        if (this.quadGeometry != null)
+            this.quadGeometry.setCullHint(hidden ? CullHint.Always : CullHint.Inherit);
+        
+        this.inView = !hidden;
+        int planeState = 0;
+        boolean frustumTest = camera != null && this.inView;
+        if (frustumTest) {
+            planeState = camera.getPlaneState();
+            this.worldBound = (BoundingBox)this.aabb.transform(worldTransform, this.worldBound);
+            this.inView = camera.contains(this.worldBound) != Camera.FrustumIntersect.Outside;
+            // half the margin for moving the camera, half for turning it
+            float margin = getFrustumStableDistance(camera);
+            this.stableDistance = Math.min(this.stableDistance, margin * 0.5f);
+            this.stableAngle = Math.min(this.stableAngle, getFrustumStableAngle(camera, margin));
+        }
+        
+        // Update camera position for subquads, which skip the frustum 
+        // planes this quad is inside of
         for (int i = 0; i < 4; i++) {
             if (this.subQuad[i] != null) {
-                this.subQuad[i].setCameraPosition(position);
+                this.subQuad[i].setCameraPosition(position, camera, worldTransform, horizon);
+                this.stableDistance = Math.min(this.stableDistance, this.subQuad[i].getStableDistance(position));
+                this.stableAngle = Math.min(this.stableAngle, this.subQuad[i].getStableAngle(rotation));
             }
         }
+        if (frustumTest)
+            camera.setPlaneState(planeState);
         
-        float distanceToEdge = this.aabb.distanceToEdge(position);
-        float aabbLength = this.aabb.getExtent(null).length();
-        
-        if ((this.quadGeometry != null || 
-                (this.subQuad[0] != null && 
+        boolean split = this.subQuad[0] != null && 
                 this.subQuad[1] != null && 
                 this.subQuad[2] != null && 
-                this.subQuad[3] != null)) &&
-                (this.depth < this.minDepth || (this.depth < this.maxDepth && distanceToEdge < aabbLength)))
+                this.subQuad[3] != null;
+        
+        // A split quad stays split until the error drops below the merge
+        // threshold, so quads near the boundary don't flip every frame
+        float error = this.lodStrategy.getError(this, position);
+        float threshold = split ? this.lodStrategy.getMergeThreshold() : this.lodStrategy.getSplitThreshold();
+        boolean refine = this.inView && (split ? error >= threshold : error > threshold);
+        if (this.depth >= this.minDepth && this.depth < this.maxDepth)
+            this.stableDistance = Math.min(this.stableDistance, 
+                    this.lodStrategy.getStableDistance(this, position, threshold));
+        
+        if ((this.quadGeometry != null || split) &&
+                (this.depth < this.minDepth || (this.depth < this.maxDepth && refine)))
         {
             
             if ((this.subQuad[0] != null &&
@@ -138,9 +249,15 @@ public class Quad {
                     this.subQuad[2] != null &&
                     this.subQuad[3] != null)) 
             {
-                hide();              
+                // The quad stays visible until all four children are 
+                // prepared, then they swap in the same frame
+                if (this.quadGeometry == null)
+                    hide();
+                else if (isSubQuadsPrepared())
+                    requestCommit(Commit.Split, error);
             } else {
                 prepareSubQuads();
+                this.stableDistance = 0f;
             }  
             
         } else {
@@ -150,60 +267,132 @@ public class Quad {
                     (this.subQuad[2] == null || this.subQuad[2].isLeaf() ) &&
                     (this.subQuad[3] == null || this.subQuad[3].isLeaf() ))
             {
-                if (!isPrepared())
-                    preparePatch();
-                
-                if (this.quadGeometry == null) {
-                    show();
+                // The children stay visible until the patch is prepared
+                if (!updatePatch()) {
+                    this.stableDistance = 0f;
+                    return;
                 }
                 
-                for (int i = 0; i < 4; i++) {
-                    if (this.subQuad[i] != null) {
-                        this.subQuad[i].hide();
-                        this.subQuad[i] = null;
-                    }
-                } 
+                if (this.quadGeometry != null) {
+                    // children of a visible quad were never shown
+                    dropSubQuads();
+                } else if (this.parentQuad == null || this.parentQuad.quadGeometry == null) {
+                    // A visible parent swaps its children in itself. Merging
+                    // away children is less urgent the finer they are, 
+                    // filling a hole is most urgent, unless nobody sees it.
+                    float priority = !this.inView ? 0f : isLeaf() ? Float.MAX_VALUE : error * 0.5f;
+                    requestCommit(Commit.Merge, priority);
+                }
             }
             
         }   
     }
+    
+    /**
+     * Applies <code>commit</code> through the commit queue, or right away
+     * without one.
+     */
+    protected void requestCommit(Commit commit, float priority) {
+        // visit again to see the swap through
+        this.stableDistance = 0f;
+        if (this.commitQueue == null) {
+            this.commitKind = commit;
+            commit();
+            return;
+        }
+        
+        if (this.commitKind == Commit.None)
+            this.commitQueue.add(this);
+        this.commitKind = commit;
+        this.commitPriority = priority;
+    }
+    
+    /**
+     * Applies the requested swap, unless the tree changed since the request.
+     */
+    protected void commit() {
+        Commit commit = this.commitKind;
+        this.commitKind = Commit.None;
+        
+        switch (commit) {
+            case Split:
+                if (this.quadGeometry != null && isSubQuadsPrepared()) {
+                    for (int i = 0; i < 4; i++) {
+                        if (this.subQuad[i].quadGeometry == null)
+                            this.subQuad[i].show();
+                    }
+                    hide();
+                }
+                break;
+            case Merge:
+                if (isPrepared() && (this.parentQuad == null || this.parentQuad.quadGeometry == null) &&
+                        (this.subQuad[0] == null || this.subQuad[0].isLeaf()) &&
+                        (this.subQuad[1] == null || this.subQuad[1].isLeaf()) &&
+                        (this.subQuad[2] == null || this.subQuad[2].isLeaf()) &&
+                        (this.subQuad[3] == null || this.subQuad[3].isLeaf())) {
+                    if (this.quadGeometry == null)
+                        show();
+                    dropSubQuads();
+                }
+                break;
+        }
+    }
+    
+    protected void dropSubQuads() {
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null) {
+                this.subQuad[i].hide();
+                this.subQuad[i] = null;
+            }
+        } 
+        updateSubtreeDepth();
+    }
 
     public void show() { 
         if (this.quadGeometry == null) {
             this.quadGeometry = new Geometry(this.name + "Geometry", patch.getMesh());
+            this.quadGeometry.setLocalTranslation(this.quadCenter);
             
-            // Set custom material parameters, if present
-            if (this.material.getMaterialDef().getMaterialParam("PatchCenter") != null)
-                this.material.setVector3("PatchCenter", this.quadCenter);
-            if (this.material.getMaterialDef().getMaterialParam("PlanetRadius") != null)
-                this.material.setFloat("PlanetRadius", this.baseRadius);
-            
-            this.quadGeometry.setMaterial(this.material);
+            // Packed positions are quantized to [-1, 1]
+            if (patch.isPackedVertices()) {
+                this.quadGeometry.setLocalScale(patch.getPackedScale());
+                this.quadGeometry.setMaterial(this.packedMaterial);
+            } else {
+                this.quadGeometry.setMaterial(this.material);
+            }
         }
         
-        if (this.quadNode == null) {
-            this.quadNode = new Node(this.name);
-            this.parentNode.attachChild(this.quadNode);
-            this.quadNode.setLocalTranslation(this.quadCenter);
-        }
+        this.quadGeometry.setCullHint(this.belowHorizon || this.belowLand ? CullHint.Always : CullHint.Inherit);
         
+        // The geometry goes right under the face container, it carries the
+        // translation to the patch center itself
+        // the bounds stay those of the patch, in planet space
         if (this.quadGeometry.getParent() == null) {
-           this.quadNode.attachChild(this.quadGeometry);
-           this.aabb = (BoundingBox)this.quadNode.getWorldBound();
+           this.parentNode.attachChild(this.quadGeometry);
+           this.stableDistance = 0f;
         }     
     }
     
     public void hide() {
-        if (this.patch != null)
-            this.patch = null;
+        this.commitKind = Commit.None;
+        if (this.patchTask != null) {
+            this.patchTask.cancel();
+            this.patchTask = null;
+        }
         
         if (this.quadGeometry != null) {
             this.quadGeometry.removeFromParent();
             this.quadGeometry = null;
         }
-        if (this.quadNode != null) {
-            this.quadNode.removeFromParent();
-            this.quadNode = null;
+        
+        // only after the geometry is detached, the buffers go back to the
+        // pool, or the patch into the cache
+        if (this.patch != null) {
+            if (this.patchCache != null && this.patch.isPrepared())
+                this.patchCache.put(this.name, this.patch);
+            else
+                this.patch.release();
+            this.patch = null;
         }
     }
     
@@ -213,47 +402,137 @@ public class Quad {
         return patch.isPrepared();
     }
     
+    protected boolean isSubQuadsPrepared() {
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] == null || !this.subQuad[i].isPrepared())
+                return false;
+        }
+        return true;
+    }
+    
     public boolean isLeaf() {
         return (this.subQuad[0] == null && this.subQuad[1] == null && this.subQuad[2] == null && this.subQuad[3] == null);
     }
     
-    public void setWireframe(boolean value) {
-        this.material.getAdditionalRenderState().setWireframe(value);
+    public void setAnalyticNormals(boolean analyticNormals) {
+        this.analyticNormals = analyticNormals;
         
         for (int i = 0; i < 4; i++) {
-            if (this.subQuad[i] != null) {
-                this.subQuad[i].setWireframe(value);
-            }
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setAnalyticNormals(analyticNormals);
+        } 
+    }
+
+    /**
+     * Builds patches in the packed vertex layout, drawn with 
+     * <code>packedMaterial</code>, which must decode it. Null builds them in
+     * the float layout.
+     */
+    public void setPackedMaterial(Material packedMaterial) {
+        this.packedMaterial = packedMaterial;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setPackedMaterial(packedMaterial);
+        } 
+    }
+
+    public void setSampleExchange(EdgeSampleExchange sampleExchange) {
+        this.sampleExchange = sampleExchange;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setSampleExchange(sampleExchange);
+        } 
+    }
+
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setBufferPool(bufferPool);
+        } 
+    }
+
+    /**
+     * Prepares patches on the workers of <code>patchBuilder</code>, or on
+     * the calling thread if null.
+     */
+    public void setPatchBuilder(PatchBuilder patchBuilder) {
+        this.patchBuilder = patchBuilder;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setPatchBuilder(patchBuilder);
+        } 
+    }
+
+    /**
+     * Spreads the swaps of splits and merges over frames through 
+     * <code>commitQueue</code>, or applies them right away if null.
+     */
+    public void setCommitQueue(LodCommitQueue commitQueue) {
+        this.commitQueue = commitQueue;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setCommitQueue(commitQueue);
+        } 
+    }
+
+    /**
+     * Keeps the patches of hidden quads in <code>patchCache</code> for when
+     * they are shown again, or releases them right away if null.
+     */
+    public void setPatchCache(PatchCache patchCache) {
+        this.patchCache = patchCache;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setPatchCache(patchCache);
+        } 
+    }
+
+    /**
+     * Builds the patches as the bare sphere of the base radius with 
+     * <code>SpherePatch</code>, for a layer without heights.
+     */
+    public void setSpherePatches(boolean spherePatches) {
+        this.spherePatches = spherePatches;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setSpherePatches(spherePatches);
         } 
     }
     
-    public void setVisiblity(boolean value) {
-        if (value)
-            this.material.getAdditionalRenderState().setFaceCullMode(FaceCullMode.Back);
-        else
-            this.material.getAdditionalRenderState().setFaceCullMode(FaceCullMode.FrontAndBack);
+    /**
+     * Hides the quads lying entirely below the terrain of 
+     * <code>landDataSource</code> and doesn't refine them, like the sea 
+     * under a mountain range. Null shows them all.
+     */
+    public void setLandDataSource(HeightDataSource landDataSource) {
+        this.landDataSource = landDataSource;
+        prepareLandBounds();
+        
         for (int i = 0; i < 4; i++) {
-            if (this.subQuad[i] != null) {
-                this.subQuad[i].setVisiblity(value);
-            }
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setLandDataSource(landDataSource);
         } 
     }
     
-    public void setMaterialParam(String name, VarType type, String value) {
-        switch (type){
-            case Boolean:
-                this.material.setBoolean(name, Boolean.parseBoolean(value));
-                break;
-        }
+    public void setLodStrategy(LodStrategy lodStrategy) {
+        this.lodStrategy = lodStrategy;
         
         for (int i = 0; i < 4; i++) {
-            if (this.subQuad[i] != null) {
-                this.subQuad[i].setMaterialParam(name, type, value);
-            }
+            if (this.subQuad[i] != null)
+                this.subQuad[i].setLodStrategy(lodStrategy);
         } 
     }
 
     public void setSkirting(boolean skirting) {
+        this.skirting = skirting;
         if (this.patch != null)
             this.patch.setSkirting(skirting);
         
@@ -267,18 +546,293 @@ public class Quad {
         return this.depth;
     }
     
+    /**
+     * Depth of the deepest quad in the subtree, kept up to date as sub quads
+     * are created and dropped.
+     */
     public int getCurrentMaxDepth() {
+        return this.subtreeDepth;
+    }
+    
+    protected void updateSubtreeDepth() {
         int cDepth = this.depth;
         for (int i = 0; i < 4; i++) {
-            if (this.subQuad[i] != null) {
-                cDepth = Math.max(cDepth, this.subQuad[i].getCurrentMaxDepth());
-            }
+            if (this.subQuad[i] != null)
+                cDepth = Math.max(cDepth, this.subQuad[i].subtreeDepth);
         }
-        return cDepth;
+        if (cDepth != this.subtreeDepth) {
+            this.subtreeDepth = cDepth;
+            if (this.parentQuad != null)
+                this.parentQuad.updateSubtreeDepth();
+        }
+    }
+    
+    /**
+     * Returns true if the subtree has work pending, or the camera moved or
+     * turned far enough from the last visit to change one of its decisions.
+     * A null <code>rotation</code> is for updates without frustum culling.
+     */
+    public boolean isStale(Vector3f position, Quaternion rotation) {
+        if (this.lastPosition.distanceSquared(position) >= this.stableDistance * this.stableDistance)
+            return true;
+        return rotation != null && this.stableAngle != Float.MAX_VALUE && 
+                getRotationAngle(rotation) >= this.stableAngle;
+    }
+    
+    /**
+     * How much farther the camera can move from <code>position</code> 
+     * before the subtree needs another visit.
+     */
+    protected float getStableDistance(Vector3f position) {
+        if (this.stableDistance <= 0f)
+            return 0f;
+        if (this.stableDistance == Float.MAX_VALUE)
+            return Float.MAX_VALUE;
+        return this.stableDistance - this.lastPosition.distance(position);
+    }
+    
+    /**
+     * How much farther the camera can turn from <code>rotation</code> 
+     * before the subtree needs another visit.
+     */
+    protected float getStableAngle(Quaternion rotation) {
+        if (rotation == null || this.stableAngle == Float.MAX_VALUE)
+            return this.stableAngle;
+        return this.stableAngle - getRotationAngle(rotation);
+    }
+    
+    /// Angle of the turn from the rotation of the last visit to rotation,
+    /// from the chord between the quaternions, which unlike the acos of 
+    /// their dot product stays exact for small turns
+    private float getRotationAngle(Quaternion rotation) {
+        Quaternion last = this.lastRotation;
+        float sign = last.dot(rotation) < 0f ? -1f : 1f;
+        float x = last.getX() - sign * rotation.getX();
+        float y = last.getY() - sign * rotation.getY();
+        float z = last.getZ() - sign * rotation.getZ();
+        float w = last.getW() - sign * rotation.getW();
+        float chord = FastMath.sqrt(x * x + y * y + z * z + w * w);
+        return 4f * FastMath.asin(Math.min(chord * 0.5f, 1f));
+    }
+    
+    /**
+     * How far the camera can turn before the world bound crosses a frustum
+     * plane. Turning by an angle moves a point relative to the planes by at
+     * most the angle times its distance to the camera, so half of 
+     * <code>margin</code> is used up at the farthest corner of the bound. 
+     * The reach allows for the camera moving by the other half.
+     */
+    protected float getFrustumStableAngle(Camera camera, float margin) {
+        float reach = camera.getLocation().distance(this.worldBound.getCenter()) + margin
+                + FastMath.sqrt(this.worldBound.getXExtent() * this.worldBound.getXExtent()
+                + this.worldBound.getYExtent() * this.worldBound.getYExtent()
+                + this.worldBound.getZExtent() * this.worldBound.getZExtent());
+        return margin * 0.5f / reach;
+    }
+    
+    /**
+     * How far the frustum planes can move before the world bound changes 
+     * from outside the frustum to not, or back. A bound outside stays so 
+     * while any plane it lies behind still rejects it, one in view stays so
+     * until it gets behind a plane.
+     */
+    protected float getFrustumStableDistance(Camera camera) {
+        float inside = Float.MAX_VALUE;
+        float outside = 0f;
+        Vector3f center = this.worldBound.getCenter();
+        for (int i = 0; i < FRUSTUM_PLANES; i++) {
+            Plane plane = camera.getWorldPlane(i);
+            Vector3f normal = plane.getNormal();
+            float distance = normal.dot(center) - plane.getConstant();
+            float radius = this.worldBound.getXExtent() * Math.abs(normal.x) 
+                    + this.worldBound.getYExtent() * Math.abs(normal.y)
+                    + this.worldBound.getZExtent() * Math.abs(normal.z);
+            if (distance < -radius)
+                outside = Math.max(outside, -radius - distance);
+            else
+                inside = Math.min(inside, distance + radius);
+        }
+        return outside > 0f ? outside : inside;
+    }
+    
+    /**
+     * Makes the next update visit the whole subtree, after a change the
+     * camera position and rotation don't tell, like its projection or the 
+     * LOD settings.
+     */
+    public void invalidate() {
+        this.stableDistance = 0f;
+        
+        for (int i = 0; i < 4; i++) {
+            if (this.subQuad[i] != null)
+                this.subQuad[i].invalidate();
+        } 
     }
 
-    protected void preparePatch() {                
-        this.patch = new Patch(
+    /**
+     * Estimates the bounding box from the height bounds of the data source
+     * before the patch exists, so the quad can be tested against the camera
+     * without generating any vertices.
+     */
+    protected void prepareBounds() {
+        float[] bounds = new float[2];
+        this.dataSource.getHeightBounds(this.min, this.max, bounds);
+        this.heightMin = bounds[0];
+        this.heightMax = bounds[1];
+        float innerRadius = this.baseRadius + this.heightMin;
+        float outerRadius = this.baseRadius + this.heightMax;
+        
+        Vector3f minBounds = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        Vector3f maxBounds = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        Vector3f[] unitSphere = new Vector3f[9];
+        float padding = 2f / this.quads;
+        float[] grid = { -padding, 0.5f, 1f + padding };
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                // the two axes that vary over the face take the grid steps,
+                // widened by the padding ring the patch includes in its box
+                float[] step = { grid[x], grid[y] };
+                int axis = 0;
+                float tx = this.min.x == this.max.x ? 0f : step[axis++];
+                float ty = this.min.y == this.max.y ? 0f : step[axis++];
+                float tz = this.min.z == this.max.z ? 0f : step[axis++];
+                Vector3f p = new Vector3f(
+                        this.min.x + (this.max.x - this.min.x) * tx,
+                        this.min.y + (this.max.y - this.min.y) * ty,
+                        this.min.z + (this.max.z - this.min.z) * tz);
+                p.normalizeLocal();
+                unitSphere[y * 3 + x] = p;
+                minBounds.x = Math.min(minBounds.x, Math.min(p.x * innerRadius, p.x * outerRadius));
+                minBounds.y = Math.min(minBounds.y, Math.min(p.y * innerRadius, p.y * outerRadius));
+                minBounds.z = Math.min(minBounds.z, Math.min(p.z * innerRadius, p.z * outerRadius));
+                maxBounds.x = Math.max(maxBounds.x, Math.max(p.x * innerRadius, p.x * outerRadius));
+                maxBounds.y = Math.max(maxBounds.y, Math.max(p.y * innerRadius, p.y * outerRadius));
+                maxBounds.z = Math.max(maxBounds.z, Math.max(p.z * innerRadius, p.z * outerRadius));
+            }
+        }
+        
+        // the sphere bulges out between the samples, by at most the sagitta
+        // of the widest chord
+        float chord = Math.max(
+                unitSphere[0].distance(unitSphere[8]),
+                unitSphere[2].distance(unitSphere[6])) * 0.5f;
+        float sagitta = (1f - (float)Math.sqrt(Math.max(1f - chord * chord * 0.25f, 0f))) * outerRadius;
+        minBounds.addLocal(-sagitta, -sagitta, -sagitta);
+        maxBounds.addLocal(sagitta, sagitta, sagitta);
+        
+        this.aabb = new BoundingBox(minBounds, maxBounds);
+        this.geometricError = this.aabb.getExtent(null).length() * 2f / this.quads;
+    }
+    
+    /**
+     * Compares the top of the quad with the lowest the land over it can 
+     * get. The land mesh sags below its vertices by up to the sagitta of 
+     * a grid cell, which the land must clear too.
+     */
+    protected void prepareLandBounds() {
+        this.belowLand = false;
+        if (this.landDataSource == null)
+            return;
+        
+        float[] bounds = new float[2];
+        this.landDataSource.getHeightBounds(this.min, this.max, bounds);
+        float cell = this.min.distance(this.max) / this.quads;
+        float sagitta = cell * cell * 0.125f * (this.baseRadius + bounds[0]);
+        this.belowLand = bounds[0] > this.heightMax + sagitta;
+    }
+    
+    /**
+     * Bounds of the quad in planet space, estimated until it has a patch.
+     */
+    public BoundingBox getAABB() {
+        return this.aabb;
+    }
+    
+    /**
+     * Geometric error of the last patch of the quad, kept while the quad
+     * is split. Before the first patch, the spacing of its vertices.
+     */
+    public float getGeometricError() {
+        return this.geometricError;
+    }
+    
+    public float getHeightMin() {
+        return this.heightMin;
+    }
+    
+    public float getHeightMax() {
+        return this.heightMax;
+    }
+    
+    protected void preparePatch() {
+        Patch newPatch = createPatch();
+        newPatch.prepare();
+        adoptPatch(newPatch);
+    }
+    
+    /**
+     * Prepares the patch, from the patch cache if it holds the patch of
+     * this quad, else on the patch builder if there is one. Returns 
+     * true once the patch is prepared, a built patch is adopted on the 
+     * calling thread.
+     */
+    protected boolean updatePatch() {
+        if (isPrepared())
+            return true;
+        
+        if (this.patchTask == null && this.patchCache != null) {
+            Patch cachedPatch = this.patchCache.take(this.name);
+            if (cachedPatch != null) {
+                adoptPatch(cachedPatch);
+                return true;
+            }
+        }
+        
+        if (this.patchBuilder == null) {
+            preparePatch();
+            return true;
+        }
+        
+        if (this.patchTask == null) {
+            this.patchTask = this.patchBuilder.submit(createPatch());
+            return false;
+        }
+        
+        if (!this.patchTask.isDone())
+            return false;
+        
+        Patch newPatch = this.patchTask.getPatch();
+        this.patchTask = null;
+        
+        // the layout changed while the patch was built
+        if (newPatch.isPackedVertices() != (this.packedMaterial != null)) {
+            newPatch.release();
+            return false;
+        }
+        
+        adoptPatch(newPatch);
+        return true;
+    }
+    
+    protected Patch createPatch() {
+        if (this.spherePatches) {
+            Patch newPatch = new SpherePatch(
+                    this.quads,
+                    this.min,
+                    this.max,
+                    this.texXMin,
+                    this.texXMax,
+                    this.texYMin,
+                    this.texYMax,
+                    this.baseRadius,
+                    this.position,
+                    this.skirting);
+            newPatch.setPackedVertices(this.packedMaterial != null);
+            newPatch.setBufferPool(this.bufferPool);
+            return newPatch;
+        }
+        
+        Patch newPatch = new Patch(
                 this.quads,
                 this.min,
                 this.max,
@@ -289,11 +843,27 @@ public class Quad {
                 this.baseRadius,
                 this.dataSource,
                 this.position,
-                false);
+                this.skirting);
         
-        this.patch.prepare();
-        this.quadCenter = this.patch.getCenter();
-        this.aabb = this.patch.getAABB();
+        newPatch.setAnalyticNormals(this.analyticNormals);
+        newPatch.setPackedVertices(this.packedMaterial != null);
+        newPatch.setSampleExchange(this.sampleExchange);
+        newPatch.setBufferPool(this.bufferPool);
+        newPatch.setRetainSamples(this.depth < this.maxDepth);
+        if (this.parentQuad != null && this.parentQuad.patch != null)
+            newPatch.setParentPatch(this.parentQuad.patch);
+        return newPatch;
+    }
+    
+    protected void adoptPatch(Patch newPatch) {
+        // the skirting may have changed while the patch was built or cached
+        newPatch.setSkirting(this.skirting);
+        this.patch = newPatch;
+        this.quadCenter = newPatch.getCenter();
+        this.aabb = newPatch.getAABB();
+        this.geometricError = newPatch.getGeometricError();
+        // decisions taken with the estimated bounds are revisited
+        this.stableDistance = 0f;
     }
     
     protected void prepareSubQuads() {
@@ -425,7 +995,23 @@ public class Quad {
                     this.maxDepth,
                     this,
                     3);
-        }            
+        }
+        
+        for (int i = 0; i < 4; i++) {
+            this.subQuad[i].analyticNormals = this.analyticNormals;
+            this.subQuad[i].packedMaterial = this.packedMaterial;
+            this.subQuad[i].sampleExchange = this.sampleExchange;
+            this.subQuad[i].bufferPool = this.bufferPool;
+            this.subQuad[i].patchBuilder = this.patchBuilder;
+            this.subQuad[i].patchCache = this.patchCache;
+            this.subQuad[i].commitQueue = this.commitQueue;
+            this.subQuad[i].lodStrategy = this.lodStrategy;
+            this.subQuad[i].skirting = this.skirting;
+            this.subQuad[i].spherePatches = this.spherePatches;
+            this.subQuad[i].landDataSource = this.landDataSource;
+            this.subQuad[i].prepareLandBounds();
+        }
+        updateSubtreeDepth();
     }
 
 }
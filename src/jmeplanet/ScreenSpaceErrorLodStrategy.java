@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * ScreenSpaceErrorLodStrategy refines quads until the geometric error of 
+ * their patches projects to less than a few pixels on screen.
+ * 
+ * The geometric error of a patch is the farthest any of its vertices lies
+ * off the line between its neighbours, the error of leaving out every
+ * other vertex. Rough terrain is therefore refined further than flat land
+ * or ocean at the same distance. The projection follows the camera given 
+ * to <code>setCamera</code>, its field of view and viewport height.
+ */
+public class ScreenSpaceErrorLodStrategy implements LodStrategy {
+    
+    /// Pixels
+    public static final float DEFAULT_SPLIT_THRESHOLD = 8f;
+    /// Pixels
+    public static final float DEFAULT_MERGE_THRESHOLD = 6f;
+    
+    protected float splitThreshold;
+    protected float mergeThreshold;
+    /// Pixels covered by one unit at a distance of one unit
+    protected float projectionScale;
+    
+    public ScreenSpaceErrorLodStrategy() {
+        this(DEFAULT_SPLIT_THRESHOLD, DEFAULT_MERGE_THRESHOLD);
+    }
+    
+    /**
+    * <code>ScreenSpaceErrorLodStrategy</code>
+    * @param splitThreshold Error in pixels above which a quad splits
+    * @param mergeThreshold Error in pixels below which a split quad merges,
+    * less than <code>splitThreshold</code>
+    */
+    public ScreenSpaceErrorLodStrategy(float splitThreshold, float mergeThreshold) {
+        if (mergeThreshold > splitThreshold)
+            throw new IllegalArgumentException("Merge threshold above split threshold: " + mergeThreshold);
+        
+        this.splitThreshold = splitThreshold;
+        this.mergeThreshold = mergeThreshold;
+        setProjection((float)Math.toRadians(45.0), 768f);
+    }
+    
+    /**
+     * Sets the projection by hand, for use without <code>setCamera</code>.
+     * Call <code>Planet.invalidate</code> afterwards.
+     * @param fovY Vertical field of view in radians
+     * @param viewportHeight Height of the viewport in pixels
+     */
+    public void setProjection(float fovY, float viewportHeight) {
+        this.projectionScale = viewportHeight / (2f * (float)Math.tan(fovY * 0.5f));
+    }
+    
+    public void setCamera(Camera camera) {
+        // parallel projections keep the last perspective
+        if (camera.isParallelProjection() || camera.getFrustumTop() <= 0f)
+            return;
+        this.projectionScale = camera.getHeight() * camera.getFrustumNear() / (2f * camera.getFrustumTop());
+    }
+    
+    public float getError(Quad quad, Vector3f position) {
+        float geometricError = quad.getGeometricError();
+        if (geometricError <= 0f)
+            return 0f;
+        
+        float distance = quad.getAABB().distanceToEdge(position);
+        if (distance <= 0f)
+            return Float.MAX_VALUE;
+        return geometricError * this.projectionScale / distance;
+    }
+    
+    /**
+     * The error crosses the threshold where the geometric error projects to
+     * the threshold.
+     */
+    public float getStableDistance(Quad quad, Vector3f position, float threshold) {
+        float geometricError = quad.getGeometricError();
+        if (geometricError <= 0f)
+            return Float.MAX_VALUE;
+        
+        float distance = quad.getAABB().distanceToEdge(position);
+        return Math.abs(distance - geometricError * this.projectionScale / threshold);
+    }
+    
+    public float getSplitThreshold() {
+        return this.splitThreshold;
+    }
+    
+    public float getMergeThreshold() {
+        return this.mergeThreshold;
+    }
+    
+}
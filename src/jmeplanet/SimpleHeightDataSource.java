@@ -41,4 +41,22 @@ public class SimpleHeightDataSource implements HeightDataSource {
         return 0f;
     }
     
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count) {
+        for (int i = 0; i < count; i++)
+            values[i] = 0f;
+    }
+    
+    public void getValues(float[] x, float[] y, float[] z, float[] values, int count, float spacing) {
+        getValues(x, y, z, values, count);
+    }
+    
+    public float getFullDetailSpacing() {
+        return Float.POSITIVE_INFINITY;
+    }
+    
+    public void getHeightBounds(Vector3f faceMin, Vector3f faceMax, float[] bounds) {
+        bounds[0] = 0f;
+        bounds[1] = 0f;
+    }
+    
 }
@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2012 Aaron Perkins
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package jmeplanet;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import java.util.Arrays;
+
+/**
+ * SpherePatch is a patch of the bare sphere of the base radius, for layers
+ * without heights like the ocean.
+ * 
+ * Every vertex is a point of the unit sphere scaled by the radius and its
+ * normal is that unit point, so there is nothing to sample, no padding ring
+ * for the neighbour normals and no edge samples to share. The mesh has the
+ * layout of a <code>Patch</code>, colored as ocean.
+ */
+public class SpherePatch extends Patch {
+    
+    private static final HeightDataSource SEA_LEVEL = new SimpleHeightDataSource();
+    
+    public SpherePatch(
+            int quads,
+            Vector3f min,
+            Vector3f max,
+            float texXMin,
+            float texXMax,
+            float texYMin,
+            float texYMax,
+            float baseRadius,
+            int position,
+            boolean skirting) {
+        super(quads, min, max, texXMin, texXMax, texYMin, texYMax, baseRadius, SEA_LEVEL, position, skirting);
+    }
+    
+    @Override
+    public Mesh prepare() {
+        this.analyticNormals = false;
+        this.parentPatch = null;
+        return prepare(0);
+    }
+    
+    @Override
+    protected void generateVertexPositions(PatchScratch scratch) {
+        
+        prepareFaceMapping();
+        
+        float[] vertexPosition = scratch.position;
+        float[] vertexNormal = scratch.normal;
+        Vector3f pos = scratch.vector;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int y = 0; y <= this.quads; y++) {
+            for (int x = 0; x <= this.quads; x++) {
+                int index = (this.quads + 1) * y + x;
+                
+                gridToCube(x, y, pos);
+                pos.normalizeLocal();
+                vertexNormal[index * 3] = pos.x;
+                vertexNormal[index * 3 + 1] = pos.y;
+                vertexNormal[index * 3 + 2] = pos.z;
+                
+                float px = pos.x * this.baseRadius;
+                float py = pos.y * this.baseRadius;
+                float pz = pos.z * this.baseRadius;
+                vertexPosition[index * 3] = px;
+                vertexPosition[index * 3 + 1] = py;
+                vertexPosition[index * 3 + 2] = pz;
+                
+                minX = Math.min(minX, px);
+                minY = Math.min(minY, py);
+                minZ = Math.min(minZ, pz);
+                maxX = Math.max(maxX, px);
+                maxY = Math.max(maxY, py);
+                maxZ = Math.max(maxZ, pz);
+            }
+        }
+        Arrays.fill(scratch.height, 0, this.quadVertexCount, 0f);
+        
+        // Transform vertex positions to object space (i.e. centered around origin)
+        this.aabb = new BoundingBox(new Vector3f(minX, minY, minZ), new Vector3f(maxX, maxY, maxZ));
+        this.center = this.aabb.getCenter();
+        for (int index = 0; index < this.quadVertexCount; index++) {
+            vertexPosition[index * 3] -= this.center.x;
+            vertexPosition[index * 3 + 1] -= this.center.y;
+            vertexPosition[index * 3 + 2] -= this.center.z;
+        }
+        
+        this.geometricError = computeGeometricError(vertexPosition);
+    }
+    
+    @Override
+    protected void generateVertexNormals(PatchScratch scratch) {
+        // set with the positions
+    }
+    
+    @Override
+    protected int getHeightColorIndex(float height, float heightScale) {
+        return 0;
+    }
+    
+}
@@ -51,6 +51,7 @@ import java.util.Random;
 import javax.swing.JOptionPane;
 
 import jmeplanet.Planet;
+import jmeplanet.CachedHeightDataSource;
 import jmeplanet.FractalDataSource;
 import jmeplanet.PlanetAppState;
 import jmeplanet.PlanetCollisionShape;
@@ -173,8 +174,10 @@ public class PlanetMain extends SimpleApplication {
         Random r = new Random();
         
         // Add planet
-        FractalDataSource planetDataSource = new FractalDataSource(r.nextInt(Integer.MAX_VALUE));
-        planetDataSource.setHeightScale(800f);
+        FractalDataSource planetNoise = new FractalDataSource(r.nextInt(Integer.MAX_VALUE));
+        planetNoise.setHeightScale(800f);
+        // terrain and collision share one height cache
+        CachedHeightDataSource planetDataSource = new CachedHeightDataSource(planetNoise, 1 << 20);
         Planet planet = Utility.createEarthLikePlanet(getAssetManager(), 63710.0f, null, planetDataSource);
         planet.addControl(new RigidBodyControl(new PlanetCollisionShape(planet.getLocalTranslation(), planet.getRadius(), planetDataSource), 0f));
         planetAppState.addPlanet(planet);